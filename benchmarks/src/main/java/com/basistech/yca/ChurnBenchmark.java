@@ -0,0 +1,154 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.yca;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Churn: a few writers rewrite every file in the watched directory several times as fast as
+ * they can, and each operation lasts until ConfigurationAdmin has the last version of every
+ * file; so the score is what one write costs when the manager has to keep up with a burst,
+ * including the events it coalesces and any rescans after the watch service overflows.
+ * The writers write next to the directory and move the files into place. {@code applyThreads}
+ * is the manager's: 0 updates ConfigurationAdmin from the watcher thread, more from a pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChurnBenchmark {
+    private static final int FILE_COUNT = 500;
+    private static final int WRITERS = 4;
+    private static final int PASSES = 3;
+
+    @Param({"0", "4" })
+    private int applyThreads;
+
+    private Path directory;
+    private Path staging;
+    private ExecutorService writers;
+    private InMemoryConfigurationAdmin admin;
+    private FlatteningConfigFileManager manager;
+    private int version;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        directory = Files.createTempDirectory("yca-churn");
+        staging = Files.createTempDirectory("yca-churn-staging");
+        writers = Executors.newFixedThreadPool(WRITERS);
+        for (int x = 0; x < FILE_COUNT; x++) {
+            write(x, version);
+        }
+        Hashtable<String, Object> properties = new Hashtable<>();
+        properties.put("configurationDirectory", directory.toString());
+        properties.put("applyThreads", Integer.toString(applyThreads));
+        admin = new InMemoryConfigurationAdmin();
+        manager = new FlatteningConfigFileManager();
+        manager.setConfigurationAdmin(admin);
+        manager.start(properties);
+        if (!manager.awaitInventory(1, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("The inventory did not finish");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        manager.deactivate();
+        writers.shutdownNow();
+        Documents.deleteTree(directory);
+        Documents.deleteTree(staging);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILE_COUNT * PASSES)
+    public void churn() throws Exception {
+        final int first = version + 1;
+        version += PASSES;
+        List<Future<Void>> written = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            written.add(writers.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    for (int pass = 0; pass < PASSES; pass++) {
+                        for (int x = writer; x < FILE_COUNT; x += WRITERS) {
+                            write(x, first + pass);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : written) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("A writer failed", e.getCause());
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+        while (!converged()) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new IllegalStateException("The manager did not catch up");
+            }
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+    }
+
+    private void write(int x, int value) throws IOException {
+        String name = "pid" + x + ".yaml";
+        Path temp = staging.resolve(name);
+        Files.write(temp, ("value: " + value + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private boolean converged() {
+        Map<String, Dictionary<String, Object>> configurations = admin.snapshot();
+        for (int x = 0; x < FILE_COUNT; x++) {
+            Dictionary<String, Object> configuration = configurations.get("pid" + x);
+            if (configuration == null || !Integer.valueOf(version).equals(configuration.get("value"))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
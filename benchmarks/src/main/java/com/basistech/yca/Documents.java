@@ -0,0 +1,201 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.yca;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * Synthetic configuration documents for the benchmarks.
+ */
+final class Documents {
+
+    private Documents() {
+        //
+    }
+
+    /**
+     * A typical small service configuration, in yaml or json.
+     */
+    static String smallConfig(int seed, String format) {
+        if ("json".equals(format)) {
+            return "{\"name\": \"service" + seed + "\", \"enabled\": true, \"threads\": " + (seed % 16)
+                    + ", \"timeout\": 2.5, \"hosts\": [\"alpha\", \"beta\", \"gamma\"],"
+                    + " \"database\": {\"url\": \"jdbc:h2:mem:" + seed + "\", \"pool\": {\"min\": 1, \"max\": 10}}}";
+        }
+        return "name: service" + seed + "\n"
+                + "enabled: true\n"
+                + "threads: " + (seed % 16) + "\n"
+                + "timeout: 2.5\n"
+                + "hosts: [ alpha, beta, gamma ]\n"
+                + "database:\n"
+                + "  url: jdbc:h2:mem:" + seed + "\n"
+                + "  pool:\n"
+                + "    min: 1\n"
+                + "    max: 10\n";
+    }
+
+    /**
+     * A synthetic document by shape name.
+     */
+    static JsonNode shaped(String shape) {
+        switch (shape) {
+        case "deep":
+            return deep(12, 3);
+        case "wide":
+            return wide(5000);
+        case "arrays":
+            return arrays(500, 10);
+        case "strings":
+            return strings(64, 8192);
+        default:
+            throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+    }
+
+    /**
+     * Objects nested {@code depth} levels, each with {@code fanout} children, and long
+     * field names so that path copying shows up.
+     */
+    static JsonNode deep(int depth, int fanout) {
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        for (int x = 0; x < fanout; x++) {
+            if (depth == 0) {
+                node.put("leaf_value_" + x, x);
+            } else if (x == 0) {
+                node.set("nested_section_" + depth, deep(depth - 1, fanout));
+            } else {
+                node.put("sibling_value_" + x, "v" + x);
+            }
+        }
+        return node;
+    }
+
+    /**
+     * One object with {@code width} scalar children under a couple of levels of nesting.
+     */
+    static JsonNode wide(int width) {
+        ObjectNode root = JsonNodeFactory.instance.objectNode();
+        ObjectNode table = root.putObject("model").putObject("weights");
+        for (int x = 0; x < width; x++) {
+            table.put("feature" + x, x / 7.0);
+        }
+        return root;
+    }
+
+    /**
+     * An array of {@code count} objects, each holding an array of {@code length} numbers,
+     * so that most keys carry one or two index segments.
+     */
+    static JsonNode arrays(int count, int length) {
+        ObjectNode root = JsonNodeFactory.instance.objectNode();
+        ArrayNode rules = root.putArray("rules");
+        for (int x = 0; x < count; x++) {
+            ObjectNode rule = rules.addObject();
+            rule.put("name", "rule" + x);
+            ArrayNode thresholds = rule.putArray("thresholds");
+            for (int y = 0; y < length; y++) {
+                thresholds.add(x * length + y);
+            }
+        }
+        return root;
+    }
+
+    /**
+     * {@code count} independent top-level sections, each an array of small objects, with
+     * about {@code nodes} nodes in all.
+     */
+    static JsonNode sections(int count, int nodes) {
+        ObjectNode root = JsonNodeFactory.instance.objectNode();
+        int rows = Math.max(1, nodes / count / 4);
+        for (int x = 0; x < count; x++) {
+            ArrayNode section = root.putObject("section" + x).putArray("rows");
+            for (int y = 0; y < rows; y++) {
+                section.addObject().put("id", y).put("name", "row" + y).put("weight", y / 3.0);
+            }
+        }
+        return root;
+    }
+
+    /**
+     * A few keys with large string values, where copying the values rather than the
+     * keys dominates.
+     */
+    static JsonNode strings(int count, int length) {
+        ObjectNode root = JsonNodeFactory.instance.objectNode();
+        ObjectNode templates = root.putObject("templates");
+        Random random = new Random(count);
+        char[] chars = new char[length];
+        for (int x = 0; x < count; x++) {
+            for (int y = 0; y < length; y++) {
+                chars[y] = (char) ('a' + random.nextInt(26));
+            }
+            templates.put("template" + x, new String(chars));
+        }
+        return root;
+    }
+
+    /**
+     * Write a lookup table of roughly {@code bytes} bytes, in yaml or json.
+     */
+    static void writeTable(Path file, String format, long bytes) throws IOException {
+        boolean json = "json".equals(format);
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(json ? "{\"table\": {\n" : "table:\n");
+            long written = 0;
+            for (int x = 0; written < bytes; x++) {
+                String row;
+                if (json) {
+                    row = (x == 0 ? "" : ",\n") + "  \"entry" + x + "\": [" + x + ", \"label-" + Integer.toHexString(x * 31) + "\", " + (x / 3.0) + "]";
+                } else {
+                    row = "  entry" + x + ": [ " + x + ", label-" + Integer.toHexString(x * 31) + ", " + (x / 3.0) + " ]\n";
+                }
+                writer.write(row);
+                written += row.length();
+            }
+            writer.write(json ? "\n}}\n" : "");
+        }
+    }
+
+    static void deleteTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,69 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.yca;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Dictionary;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flattening cost on synthetic documents of several shapes. Run with {@code -prof gc} to
+ * get {@code gc.alloc.rate.norm}, the bytes allocated per flatten, which is the number
+ * that the shared path buffer is meant to reduce:
+ * <pre>
+ *     java -jar benchmarks/target/benchmarks.jar FlattenBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FlattenBenchmark {
+
+    @Param({"deep", "wide", "arrays", "strings" })
+    private String shape;
+
+    private JsonNode document;
+
+    @Setup
+    public void setup() {
+        document = Documents.shaped(shape);
+    }
+
+    @Benchmark
+    public Dictionary<String, ?> concatenatedPaths() {
+        return LegacyFlattener.flatten(document);
+    }
+
+    @Benchmark
+    public Dictionary<String, ?> sharedPathBuffer() {
+        return JsonNodeFlattener.flatten(document);
+    }
+
+    @Benchmark
+    public Dictionary<String, ?> sharedPathBufferInterned() {
+        return JsonNodeFlattener.flatten(document, true);
+    }
+}
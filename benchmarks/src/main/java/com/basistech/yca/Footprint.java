@@ -0,0 +1,49 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import org.openjdk.jol.info.GraphLayout;
+
+import java.util.Dictionary;
+
+/**
+ * Retained heap of the flattened forms, per document shape: the {@link java.util.Hashtable}
+ * from {@link JsonNodeFlattener#flatten} versus {@link CompactDictionary}. Not a JMH benchmark;
+ * run it directly:
+ * <pre>
+ *     java -cp benchmarks/target/benchmarks.jar com.basistech.yca.Footprint
+ * </pre>
+ */
+public final class Footprint {
+
+    private Footprint() {
+        //
+    }
+
+    public static void main(String[] args) {
+        System.out.printf("%-10s %8s %14s %14s %8s%n", "shape", "keys", "hashtable", "compact", "ratio");
+        for (String shape : new String[] {"deep", "wide", "arrays", "strings" }) {
+            Dictionary<String, ?> table = JsonNodeFlattener.flatten(Documents.shaped(shape));
+            CompactDictionary compact = CompactDictionary.copyOf(table);
+            long tableBytes = GraphLayout.parseInstance(table).totalSize();
+            long compactBytes = GraphLayout.parseInstance(compact).totalSize();
+            System.out.printf("%-10s %8d %14d %14d %8.2f%n", shape, table.size(), tableBytes, compactBytes,
+                    (double) compactBytes / tableBytes);
+        }
+    }
+}
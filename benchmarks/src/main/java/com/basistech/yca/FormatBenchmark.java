@@ -0,0 +1,69 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse and flatten cost for the same documents in each format that {@link ConfigFormats}
+ * reads, from bytes in memory, so that only the parser differs. Compare the text formats
+ * with the binary ones to see what converting a large generated file with
+ * {@link ConfigConverter} buys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FormatBenchmark {
+
+    @Param({"yaml", "json", "smile", "cbor" })
+    private String format;
+
+    @Param({"wide", "arrays", "strings" })
+    private String shape;
+
+    private JsonFactory factory;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() throws IOException {
+        factory = ConfigFormats.readerFor(format).getFactory();
+        // a copy, since a mapper makes itself the codec of its factory.
+        bytes = new ObjectMapper(factory.copy()).writeValueAsBytes(Documents.shaped(shape));
+    }
+
+    @Benchmark
+    public Dictionary<String, ?> parseAndFlatten() throws IOException {
+        try (JsonParser parser = factory.createParser(bytes)) {
+            return JsonNodeFlattener.flatten(parser);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.service.cm.Configuration;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * "Which PIDs set this key" and "which PIDs have keys under this prefix", answered by listing
+ * every configuration and scanning its keys, as a dashboard would without the manager's help,
+ * versus the {@link KeyIndex} behind {@link ConfigurationKeyQuery}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class KeyQueryBenchmark {
+    private static final int KEYS_PER_CONFIGURATION = 50;
+
+    @Param({"100", "2000" })
+    private int configurations;
+
+    private InMemoryConfigurationAdmin admin;
+    private KeyIndex index;
+
+    @Setup
+    public void setup() throws IOException {
+        admin = new InMemoryConfigurationAdmin();
+        index = new KeyIndex(Collections.<String>emptySet());
+        for (int x = 0; x < configurations; x++) {
+            Hashtable<String, Object> props = new Hashtable<>();
+            for (int k = 0; k < KEYS_PER_CONFIGURATION; k++) {
+                props.put("section" + (k % 5) + ".key" + k, k);
+            }
+            if (x % 10 == 0) {
+                props.put("solr.url", "http://solr" + x);
+            }
+            admin.getConfiguration("pid" + x, null).update(props);
+            index.put("pid" + x, props);
+        }
+    }
+
+    @Benchmark
+    public Set<String> scanForKey() throws IOException, InvalidSyntaxException {
+        Set<String> pids = new TreeSet<>();
+        for (Configuration config : admin.listConfigurations(null)) {
+            if (config.getProperties().get("solr.url") != null) {
+                pids.add(config.getPid());
+            }
+        }
+        return pids;
+    }
+
+    @Benchmark
+    public Set<String> indexForKey() {
+        return index.getPids("solr.url");
+    }
+
+    @Benchmark
+    public Set<String> scanForPrefix() throws IOException, InvalidSyntaxException {
+        Set<String> pids = new TreeSet<>();
+        for (Configuration config : admin.listConfigurations(null)) {
+            Dictionary<String, Object> props = config.getProperties();
+            for (Enumeration<String> keys = props.keys(); keys.hasMoreElements();) {
+                if (keys.nextElement().startsWith("solr.")) {
+                    pids.add(config.getPid());
+                    break;
+                }
+            }
+        }
+        return pids;
+    }
+
+    @Benchmark
+    public Set<String> indexForPrefix() {
+        return index.getPidsWithPrefix("solr.");
+    }
+}
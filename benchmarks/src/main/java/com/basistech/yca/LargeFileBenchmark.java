@@ -0,0 +1,104 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Dictionary;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading, digesting and flattening one large lookup-table file: a fresh array per file
+ * ({@code Files.readAllBytes}, as before), bulk reads into a recycled buffer, and a
+ * direct buffer. Run with {@code -prof gc} for the heap bytes allocated per file; the
+ * recycled and direct reads should save about the file size each.
+ * <pre>
+ *     java -jar benchmarks/target/benchmarks.jar LargeFileBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LargeFileBenchmark {
+
+    @Param({"yaml", "json" })
+    private String format;
+
+    @Param({"1", "16" })
+    private int megabytes;
+
+    private Path directory;
+    private Path file;
+    private long size;
+    private JsonFactory factory;
+    private final FileContents buffered = new FileContents(Long.MAX_VALUE);
+    private final FileContents direct = new FileContents(0);
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("yca-large");
+        file = directory.resolve("table." + format);
+        Documents.writeTable(file, format, megabytes * 1024L * 1024L);
+        size = Files.size(file);
+        factory = ConfigFormats.readerFor(format).getFactory();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Documents.deleteTree(directory);
+    }
+
+    @Benchmark
+    public Dictionary<String, ?> readAllBytes() throws IOException {
+        byte[] content = Files.readAllBytes(file);
+        FileFingerprint.digest(content, 0, content.length);
+        try (JsonParser parser = factory.createParser(content)) {
+            return JsonNodeFlattener.flatten(parser);
+        }
+    }
+
+    @Benchmark
+    public Dictionary<String, ?> recycledBuffer() throws IOException {
+        return digestAndFlatten(buffered.read(file, size));
+    }
+
+    @Benchmark
+    public Dictionary<String, ?> directBuffer() throws IOException {
+        return digestAndFlatten(direct.read(file, size));
+    }
+
+    private Dictionary<String, ?> digestAndFlatten(FileContents.Content content) throws IOException {
+        content.digest();
+        try (JsonParser parser = content.createParser(factory)) {
+            return JsonNodeFlattener.flatten(parser);
+        }
+    }
+}
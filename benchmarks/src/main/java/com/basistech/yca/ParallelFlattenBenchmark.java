@@ -0,0 +1,84 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sequential versus fork/join flattening of a document with 16 independent top-level
+ * sections, across document sizes, to find where the parallel version starts to win.
+ * The final puts into the Hashtable stay sequential, so the speedup is capped well below
+ * the number of cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParallelFlattenBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000" })
+    private int nodes;
+
+    @Param({"512", "8192" })
+    private int threshold;
+
+    private JsonNode document;
+    private ForkJoinPool pool;
+    private ParallelFlattener flattener;
+
+    @Setup
+    public void setup() {
+        document = Documents.sections(16, nodes);
+        pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        flattener = new ParallelFlattener(threshold, false);
+        Dictionary<String, ?> expected = sequential();
+        Dictionary<String, ?> actual = parallel();
+        // the same insertions in the same order: the same table.
+        if (!expected.equals(actual) || !Collections.list(expected.keys()).equals(Collections.list(actual.keys()))) {
+            throw new IllegalStateException("The parallel flatten does not match the sequential one");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public Dictionary<String, ?> sequential() {
+        return JsonNodeFlattener.flatten(document);
+    }
+
+    @Benchmark
+    public Dictionary<String, ?> parallel() {
+        return flattener.flatten(document, pool);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Flattens a tree with a fork/join pool. Each child of a large container that is itself
+ * large (at least {@code threshold} nodes) becomes a task; smaller ones are flattened inline
+ * by the task that owns their parent. Tasks do not share a map: each one lists its
+ * entries in document order, with its forked children in their places. The lists are
+ * then put into a single Hashtable in that order, which is the order of the sequential
+ * traversal, so that the result is the same Hashtable, down to its enumeration order.
+ * Building the keys and values is what runs in parallel; the final puts do not.
+ * <p>
+ * The manager flattens straight from the token stream, where there is no tree to split,
+ * so this lives here, to measure against the sequential flatten of a tree.
+ */
+final class ParallelFlattener {
+    private final int threshold;
+    private final boolean internKeys;
+
+    ParallelFlattener(int threshold, boolean internKeys) {
+        this.threshold = Math.max(1, threshold);
+        this.internKeys = internKeys;
+    }
+
+    Dictionary<String, Object> flatten(JsonNode node, ForkJoinPool pool) {
+        List<Object> entries = pool.invoke(new Task(node, ""));
+        Dictionary<String, Object> map = new Hashtable<>();
+        putAll(entries, map);
+        return map;
+    }
+
+    private static void putAll(List<Object> entries, Dictionary<String, Object> map) {
+        for (int x = 0; x < entries.size(); x++) {
+            Object item = entries.get(x);
+            if (item instanceof Task) {
+                putAll(((Task) item).join(), map);
+            } else {
+                map.put((String) item, entries.get(++x));
+            }
+        }
+    }
+
+    /*
+     * Flattens one large node into a list of alternating keys and values, and forked tasks.
+     */
+    private final class Task extends RecursiveTask<List<Object>> {
+        private static final long serialVersionUID = 1L;
+        private final JsonNode node;
+        private final String path;
+
+        Task(JsonNode node, String path) {
+            this.node = node;
+            this.path = path;
+        }
+
+        @Override
+        protected List<Object> compute() {
+            List<Object> entries = new ArrayList<>();
+            StringBuilder buffer = new StringBuilder(path);
+            try {
+                if (!node.isContainerNode()) {
+                    leaf(node, buffer, entries);
+                } else if (node.isArray()) {
+                    for (int nodeIndex = 0; nodeIndex < node.size(); nodeIndex++) {
+                        buffer.append('[').append(nodeIndex).append(']');
+                        child(node.get(nodeIndex), buffer, entries);
+                        buffer.setLength(path.length());
+                    }
+                } else {
+                    Iterator<Map.Entry<String, JsonNode>> fieldIt = node.fields();
+                    while (fieldIt.hasNext()) {
+                        Map.Entry<String, JsonNode> entry = fieldIt.next();
+                        if (path.length() > 0) {
+                            buffer.append('.');
+                        }
+                        buffer.append(entry.getKey());
+                        child(entry.getValue(), buffer, entries);
+                        buffer.setLength(path.length());
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return entries;
+        }
+
+        private void child(JsonNode child, StringBuilder buffer, List<Object> entries) throws IOException {
+            if (child.isContainerNode() && count(child, threshold) >= threshold) {
+                Task task = new Task(child, buffer.toString());
+                task.fork();
+                entries.add(task);
+            } else {
+                traverse(child, buffer, entries);
+            }
+        }
+    }
+
+    /*
+     * The sequential traversal, as in JsonNodeFlattener, for subtrees too small to fork.
+     */
+    private void traverse(JsonNode node, StringBuilder path, List<Object> entries) throws IOException {
+        int length = path.length();
+        if (!node.isContainerNode()) {
+            leaf(node, path, entries);
+        } else if (node.isArray()) {
+            for (int nodeIndex = 0; nodeIndex < node.size(); nodeIndex++) {
+                path.append('[').append(nodeIndex).append(']');
+                traverse(node.get(nodeIndex), path, entries);
+                path.setLength(length);
+            }
+        } else {
+            Iterator<Map.Entry<String, JsonNode>> fieldIt = node.fields();
+            while (fieldIt.hasNext()) {
+                Map.Entry<String, JsonNode> entry = fieldIt.next();
+                if (length > 0) {
+                    path.append('.');
+                }
+                path.append(entry.getKey());
+                traverse(entry.getValue(), path, entries);
+                path.setLength(length);
+            }
+        }
+    }
+
+    private void leaf(JsonNode node, StringBuilder path, List<Object> entries) throws IOException {
+        entries.add(JsonNodeFlattener.key(path, internKeys));
+        entries.add(JsonNodeFlattener.scalarValue(node));
+    }
+
+    /*
+     * The number of nodes in the subtree, counting no further than the limit, so that
+     * sizing up a large subtree costs no more than the threshold.
+     */
+    private static int count(JsonNode node, int limit) {
+        int count = 1;
+        if (node.isContainerNode()) {
+            for (JsonNode child : node) {
+                count += count(child, limit - count);
+                if (count >= limit) {
+                    return count;
+                }
+            }
+        }
+        return count;
+    }
+}
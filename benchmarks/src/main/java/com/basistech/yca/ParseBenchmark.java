@@ -0,0 +1,98 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.yca;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Files per second for reading a directory full of small configuration files,
+ * building a fresh {@link ObjectMapper} per file (as the manager used to) versus
+ * using the shared readers from {@link ConfigFormats}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParseBenchmark {
+    private static final int FILE_COUNT = 500;
+
+    @Param({"yaml", "json" })
+    private String format;
+
+    private Path directory;
+    private Path[] files;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("yca-parse");
+        files = new Path[FILE_COUNT];
+        for (int x = 0; x < FILE_COUNT; x++) {
+            files[x] = directory.resolve("pid" + x + "." + format);
+            Files.write(files[x], Documents.smallConfig(x, format).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Documents.deleteTree(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILE_COUNT)
+    public void freshMapperPerFile(Blackhole bh) throws IOException {
+        for (Path file : files) {
+            ObjectMapper mapper;
+            if ("json".equals(format)) {
+                mapper = new ObjectMapper();
+            } else {
+                mapper = new ObjectMapper(new YAMLFactory());
+            }
+            bh.consume(JsonNodeFlattener.flatten(mapper.readTree(file.toFile())));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILE_COUNT)
+    public void sharedReader(Blackhole bh) throws IOException {
+        for (Path file : files) {
+            JsonNode node;
+            try (InputStream input = Files.newInputStream(file)) {
+                node = ConfigFormats.readerFor(file).readTree(input);
+            }
+            bh.consume(JsonNodeFlattener.flatten(node));
+        }
+    }
+}
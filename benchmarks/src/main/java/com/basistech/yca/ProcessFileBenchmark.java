@@ -0,0 +1,128 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole path from a file to ConfigurationAdmin: {@code processAddOrUpdate} against
+ * the in-memory ConfigurationAdmin from the feature's tests.
+ * <ul>
+ *     <li>{@code unchanged} revisits files that have not changed in a while, which should cost a stat.</li>
+ *     <li>{@code changed} rewrites each file with new content and processes it: read, parse, flatten, compare, update.
+ *     {@code rewriteOnly} is the cost of the writes alone, to subtract.</li>
+ * </ul>
+ * The files live outside the watched directory, so the watcher thread stays out of the way.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProcessFileBenchmark {
+    private static final int FILE_COUNT = 200;
+
+    @Param({"yaml", "json" })
+    private String format;
+
+    private Path watched;
+    private Path directory;
+    private Path[] files;
+    private byte[][][] versions;
+    private int round;
+    private FlatteningConfigFileManager manager;
+
+    @Setup
+    public void setup() throws IOException {
+        watched = Files.createTempDirectory("yca-watched");
+        directory = Files.createTempDirectory("yca-files");
+        files = new Path[FILE_COUNT];
+        versions = new byte[FILE_COUNT][2][];
+        FileTime longAgo = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+        for (int x = 0; x < FILE_COUNT; x++) {
+            files[x] = directory.resolve("pid" + x + "." + format);
+            versions[x][0] = Documents.smallConfig(x, format).getBytes(StandardCharsets.UTF_8);
+            versions[x][1] = Documents.smallConfig(x + FILE_COUNT, format).getBytes(StandardCharsets.UTF_8);
+            Files.write(files[x], versions[x][0]);
+            Files.setLastModifiedTime(files[x], longAgo);
+        }
+
+        Hashtable<String, Object> properties = new Hashtable<>();
+        properties.put("configurationDirectory", watched.toString());
+        manager = new FlatteningConfigFileManager();
+        manager.setConfigurationAdmin(new InMemoryConfigurationAdmin());
+        manager.start(properties);
+        try {
+            manager.awaitInventory(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        for (Path file : files) {
+            manager.processAddOrUpdate(file);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        manager.deactivate();
+        Documents.deleteTree(directory);
+        Documents.deleteTree(watched);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILE_COUNT)
+    public void unchanged() {
+        for (Path file : files) {
+            manager.processAddOrUpdate(file);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILE_COUNT)
+    public void changed() throws IOException {
+        round++;
+        for (int x = 0; x < FILE_COUNT; x++) {
+            Files.write(files[x], versions[x][round & 1]);
+            manager.processAddOrUpdate(files[x]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILE_COUNT)
+    public void rewriteOnly() throws IOException {
+        round++;
+        for (int x = 0; x < FILE_COUNT; x++) {
+            Files.write(files[x], versions[x][round & 1]);
+        }
+    }
+}
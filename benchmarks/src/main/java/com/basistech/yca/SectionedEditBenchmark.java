@@ -0,0 +1,85 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Dictionary;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of a one-line edit to a large yaml file, which flips between two versions
+ * that differ in one top-level section: flattening the whole file again, versus the
+ * {@link SectionedFlattener}, which parses the one section and splices it in.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SectionedEditBenchmark {
+
+    @Param({"100", "2000" })
+    private int sections;
+
+    private final byte[][] versions = new byte[2][];
+    private JsonFactory factory;
+    private SectionedFlattener sectioned;
+    private int next;
+
+    @Setup
+    public void setup() {
+        factory = ConfigFormats.readerFor("yaml").getFactory();
+        for (int v = 0; v < 2; v++) {
+            StringBuilder text = new StringBuilder();
+            for (int x = 0; x < sections; x++) {
+                text.append("section").append(x).append(":\n");
+                for (int y = 0; y < 50; y++) {
+                    int value = x == sections / 2 && y == 0 ? v : x * y;
+                    text.append("  key").append(y).append(": ").append(value).append('\n');
+                }
+            }
+            versions[v] = text.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        sectioned = new SectionedFlattener(factory);
+        sectioned.flatten("file", versions[1]);
+    }
+
+    @Benchmark
+    public Dictionary<String, ?> fullFlatten() throws IOException {
+        next ^= 1;
+        try (JsonParser parser = factory.createParser(versions[next])) {
+            return JsonNodeFlattener.flatten(parser);
+        }
+    }
+
+    @Benchmark
+    public Dictionary<String, ?> sectionedFlatten() {
+        next ^= 1;
+        return sectioned.flatten("file", versions[next]);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.yca;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup: from starting the manager on a directory of small files to the last configuration
+ * applied, against the in-memory ConfigurationAdmin from the feature's tests.
+ * <ul>
+ *     <li>{@code cold} starts against an empty ConfigurationAdmin, so every file is parsed and
+ *     every configuration created, with the parsing on the watcher thread
+ *     ({@code inventoryThreads=1}) or on a pool.</li>
+ *     <li>{@code warmFromSnapshot} restarts against a ConfigurationAdmin that already has every
+ *     configuration, with the snapshot the last run left, so no file should be read.</li>
+ *     <li>{@code bundle} is {@code cold} with the same configurations in one bundle file
+ *     (see {@link ConfigurationBundle}) instead of a file each.</li>
+ * </ul>
+ * The files are an hour old, so that their modification times can be trusted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StartupBenchmark {
+    private static final int FILE_COUNT = 1000;
+
+    @Param({"1", "4" })
+    private int inventoryThreads;
+
+    private Path directory;
+    private Path bundled;
+    private Path snapshot;
+    private InMemoryConfigurationAdmin applied;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("yca-startup");
+        FileTime longAgo = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+        StringBuilder bundle = new StringBuilder();
+        for (int x = 0; x < FILE_COUNT; x++) {
+            String content = Documents.smallConfig(x, "yaml");
+            Path file = directory.resolve("pid" + x + ".yaml");
+            Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+            Files.setLastModifiedTime(file, longAgo);
+            bundle.append("pid").append(x).append(":\n  ").append(content.trim().replace("\n", "\n  ")).append('\n');
+        }
+        bundled = Files.createTempDirectory("yca-startup-bundle");
+        Path file = bundled.resolve("all" + ConfigurationBundle.BUNDLE_SUFFIX + ".yaml");
+        Files.write(file, bundle.toString().getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, longAgo);
+        snapshot = Files.createTempFile("yca-startup", ".bin");
+        applied = new InMemoryConfigurationAdmin();
+        start(directory, applied, "snapshotFile", snapshot.toString()).deactivate();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Documents.deleteTree(directory);
+        Documents.deleteTree(bundled);
+        Files.deleteIfExists(snapshot);
+    }
+
+    @Benchmark
+    public InMemoryConfigurationAdmin cold() {
+        InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        start(directory, admin).deactivate();
+        return admin;
+    }
+
+    @Benchmark
+    public InMemoryConfigurationAdmin bundle() {
+        InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        start(bundled, admin).deactivate();
+        return admin;
+    }
+
+    @Benchmark
+    public long warmFromSnapshot() {
+        FlatteningConfigFileManager manager = start(directory, applied, "snapshotFile", snapshot.toString());
+        manager.deactivate();
+        return manager.getFilesParsed();
+    }
+
+    private FlatteningConfigFileManager start(Path watched, InMemoryConfigurationAdmin admin, String... properties) {
+        Hashtable<String, Object> props = new Hashtable<>();
+        props.put("configurationDirectory", watched.toString());
+        props.put("inventoryThreads", Integer.toString(inventoryThreads));
+        for (int x = 0; x < properties.length; x += 2) {
+            props.put(properties[x], properties[x + 1]);
+        }
+        FlatteningConfigFileManager manager = new FlatteningConfigFileManager();
+        manager.setConfigurationAdmin(admin);
+        manager.start(props);
+        try {
+            if (!manager.awaitInventory(1, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("The inventory did not finish");
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        return manager;
+    }
+}
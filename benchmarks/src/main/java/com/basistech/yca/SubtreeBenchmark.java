@@ -0,0 +1,71 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Dictionary;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading one small section ({@code database.pool}) out of a large flattened
+ * configuration: unflattening the whole thing and navigating the tree, versus a
+ * {@link FlattenedView}, over a {@link CompactDictionary} (already in key order) and over
+ * a Hashtable (which has to be sorted first).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SubtreeBenchmark {
+
+    private Dictionary<String, ?> hashtable;
+    private CompactDictionary compact;
+
+    @Setup
+    public void setup() {
+        ObjectNode root = (ObjectNode) Documents.wide(5000);
+        ObjectNode pool = root.putObject("database").putObject("pool");
+        pool.put("min", 1);
+        pool.put("max", 10);
+        hashtable = JsonNodeFlattener.flatten(root);
+        compact = CompactDictionary.copyOf(hashtable);
+    }
+
+    @Benchmark
+    public JsonNode unflattenAll() {
+        return JsonNodeFlattener.unflatten(compact).get("database").get("pool");
+    }
+
+    @Benchmark
+    public JsonNode viewOfCompact() {
+        return FlattenedView.of(compact).at("database.pool").toJsonNode();
+    }
+
+    @Benchmark
+    public JsonNode viewOfHashtable() {
+        return FlattenedView.of(hashtable).at("database.pool").toJsonNode();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.yca;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Dictionary;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unflatten throughput, comparing the reflective, walk-from-the-root implementation
+ * with the single ordered pass. The reflective version gets arrays of ten or more
+ * objects wrong, so its {@code arrays} result is a timing only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UnflattenBenchmark {
+
+    @Param({"deep", "wide", "arrays", "strings" })
+    private String shape;
+
+    private Dictionary<String, ?> flattened;
+
+    @Setup
+    public void setup() {
+        flattened = JsonNodeFlattener.flatten(Documents.shaped(shape));
+    }
+
+    @Benchmark
+    public JsonNode reflective() {
+        return LegacyFlattener.unflatten(flattened);
+    }
+
+    @Benchmark
+    public JsonNode orderedPass() {
+        return JsonNodeFlattener.unflatten(flattened);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Where the manager learns about changes to the configuration directory. All of the
+ * methods are called from the manager's watcher thread.
+ */
+interface ChangeSource {
+
+    /**
+     * Receives changes from {@link #await}.
+     */
+    interface Listener {
+        void changed(Path file, EventCoalescer.Action action, int repeats);
+
+        /**
+         * A directory went away; its files might not be reported one by one.
+         */
+        void directoryRemoved(Path directory);
+
+        /**
+         * Changes were lost; the caller should compare the whole tree.
+         */
+        void overflowed();
+    }
+
+    /**
+     * List the files that are there now. Changes are reported relative to the most
+     * recent listing, so anything created after this returns will be reported.
+     */
+    List<Path> listFiles() throws IOException;
+
+    /**
+     * Wait for changes and report them.
+     * @param timeoutNanos how long to wait at most; negative to wait until something happens.
+     * @return false if the directory is gone and no more changes will come.
+     */
+    boolean await(long timeoutNanos, Listener listener) throws InterruptedException;
+
+    void close();
+}
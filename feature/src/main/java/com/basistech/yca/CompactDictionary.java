@@ -0,0 +1,452 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read-only flattened configuration that takes much less heap than the {@link java.util.Hashtable}
+ * from {@link JsonNodeFlattener#flatten}, for bundles that keep large configurations around.
+ * <p>
+ * Keys are kept sorted in {@link JsonNodeFlattener#KEY_ORDER} and front-coded: in each block of
+ * {@value #BLOCK} keys, the first is stored whole and the rest as the length of the prefix they
+ * share with the key before plus the remaining characters, all in one {@code char[]}. Numbers
+ * and booleans are stored unboxed in a {@code long[]}; only strings and other objects are kept as
+ * objects. Lookups binary-search the block heads and then scan one block. Values are boxed
+ * when they are read through the {@link Dictionary} or {@link Map} interfaces; use
+ * {@link #getLong} and {@link #getDouble} to avoid that.
+ * <p>
+ * Enumerations are in key order. Like {@link Collections#unmodifiableMap}, this does not
+ * support {@link #put} or {@link #remove}.
+ */
+public final class CompactDictionary extends Dictionary<String, Object> {
+    static final int BLOCK = 16;
+    private static final byte INT = 0;
+    private static final byte LONG = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte BOOLEAN = 3;
+    private static final byte NULL = 4;
+    private static final byte OBJECT = 5;
+
+    private final int size;
+    private final char[] keyChars;
+    // keyStarts[i] is where key i's own characters start in keyChars; keyStarts[size] is the end.
+    private final int[] keyStarts;
+    // how much of key i is shared with key i - 1; always 0 at the start of a block.
+    private final char[] shared;
+    private final String[] blockHeads;
+    private final byte[] types;
+    // the bits of each number or boolean, or for OBJECT, the index in objects.
+    private final long[] values;
+    private final Object[] objects;
+    private Map<String, Object> map;
+
+    private CompactDictionary(int size, char[] keyChars, int[] keyStarts, char[] shared, String[] blockHeads,
+                              byte[] types, long[] values, Object[] objects) {
+        this.size = size;
+        this.keyChars = keyChars;
+        this.keyStarts = keyStarts;
+        this.shared = shared;
+        this.blockHeads = blockHeads;
+        this.types = types;
+        this.values = values;
+        this.objects = objects;
+    }
+
+    /**
+     * @return a compact copy; if {@code source} is already compact, it is returned as is.
+     */
+    public static CompactDictionary copyOf(Dictionary<String, ?> source) {
+        if (source instanceof CompactDictionary) {
+            return (CompactDictionary) source;
+        }
+        List<String> keys = new ArrayList<>(source.size());
+        for (Enumeration<String> keyEnum = source.keys(); keyEnum.hasMoreElements();) {
+            keys.add(keyEnum.nextElement());
+        }
+        Collections.sort(keys, JsonNodeFlattener.KEY_ORDER);
+
+        int size = keys.size();
+        int[] keyStarts = new int[size + 1];
+        char[] shared = new char[size];
+        String[] blockHeads = new String[(size + BLOCK - 1) / BLOCK];
+        byte[] types = new byte[size];
+        long[] values = new long[size];
+        List<Object> objects = new ArrayList<>();
+        StringBuilder chars = new StringBuilder();
+        String previous = "";
+        for (int x = 0; x < size; x++) {
+            String key = keys.get(x);
+            int common = 0;
+            if (x % BLOCK == 0) {
+                blockHeads[x / BLOCK] = key;
+            } else {
+                int n = Math.min(Math.min(previous.length(), key.length()), Character.MAX_VALUE);
+                while (common < n && previous.charAt(common) == key.charAt(common)) {
+                    common++;
+                }
+            }
+            shared[x] = (char) common;
+            keyStarts[x] = chars.length();
+            chars.append(key, common, key.length());
+            previous = key;
+
+            Object value = source.get(key);
+            if (value instanceof Integer) {
+                types[x] = INT;
+                values[x] = (Integer) value;
+            } else if (value instanceof Long) {
+                types[x] = LONG;
+                values[x] = (Long) value;
+            } else if (value instanceof Double) {
+                types[x] = DOUBLE;
+                values[x] = Double.doubleToRawLongBits((Double) value);
+            } else if (value instanceof Boolean) {
+                types[x] = BOOLEAN;
+                values[x] = (Boolean) value ? 1 : 0;
+            } else if (value == JsonNodeFlattener.NULL) {
+                types[x] = NULL;
+            } else {
+                types[x] = OBJECT;
+                values[x] = objects.size();
+                objects.add(value);
+            }
+        }
+        keyStarts[size] = chars.length();
+        char[] keyChars = new char[chars.length()];
+        chars.getChars(0, chars.length(), keyChars, 0);
+        return new CompactDictionary(size, keyChars, keyStarts, shared, blockHeads, types, values, objects.toArray());
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the position of the key in key order, or -1 if it is not here.
+     */
+    int indexOf(String key) {
+        int low = 0;
+        int high = blockHeads.length - 1;
+        // the last block whose head is not after the key.
+        int block = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = JsonNodeFlattener.KEY_ORDER.compare(blockHeads[mid], key);
+            if (cmp == 0) {
+                return mid * BLOCK;
+            } else if (cmp < 0) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (block == -1) {
+            return -1;
+        }
+        // Scan the block, keeping track of how much of the target the current entry matches,
+        // so that only the characters past that need comparing. (Because indices sort
+        // numerically, a mismatch does not mean that the rest of the block is past the target.)
+        int first = block * BLOCK;
+        int end = Math.min(first + BLOCK, size);
+        int matched = matchLength(blockHeads[block], key);
+        for (int x = first + 1; x < end; x++) {
+            int common = shared[x];
+            if (common != matched) {
+                // it differs from the previous entry before, or agrees with it past, the
+                // point where that one stopped matching: either way, not a match.
+                matched = Math.min(common, matched);
+                continue;
+            }
+            // common == matched: compare the rest.
+            int start = keyStarts[x];
+            int length = keyStarts[x + 1] - start;
+            int y = 0;
+            while (y < length && matched + y < key.length() && keyChars[start + y] == key.charAt(matched + y)) {
+                y++;
+            }
+            matched += y;
+            if (y == length && matched == key.length()) {
+                return x;
+            }
+        }
+        return -1;
+    }
+
+    private static int matchLength(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        int x = 0;
+        while (x < n && a.charAt(x) == b.charAt(x)) {
+            x++;
+        }
+        return x;
+    }
+
+    /**
+     * @return the key at this position in key order.
+     */
+    String keyAt(int index) {
+        int first = index - index % BLOCK;
+        StringBuilder key = new StringBuilder(blockHeads[first / BLOCK]);
+        for (int x = first + 1; x <= index; x++) {
+            key.setLength(shared[x]);
+            key.append(keyChars, keyStarts[x], keyStarts[x + 1] - keyStarts[x]);
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the value at this position in key order, boxed.
+     */
+    Object valueAt(int index) {
+        switch (types[index]) {
+        case INT:
+            return (int) values[index];
+        case LONG:
+            return values[index];
+        case DOUBLE:
+            return Double.longBitsToDouble(values[index]);
+        case BOOLEAN:
+            return values[index] != 0;
+        case NULL:
+            return JsonNodeFlattener.NULL;
+        default:
+            return objects[(int) values[index]];
+        }
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int index = indexOf((String) key);
+        return index < 0 ? null : valueAt(index);
+    }
+
+    /**
+     * @return the value of an integer-valued key, without boxing, or the default if the key
+     * is missing or does not hold an integer.
+     */
+    public long getLong(String key, long defaultValue) {
+        int index = indexOf(key);
+        if (index < 0 || (types[index] != INT && types[index] != LONG)) {
+            return defaultValue;
+        }
+        return values[index];
+    }
+
+    /**
+     * @return the value of a numeric key as a double, without boxing, or the default if the
+     * key is missing or does not hold a double or an integer.
+     */
+    public double getDouble(String key, double defaultValue) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return defaultValue;
+        }
+        switch (types[index]) {
+        case DOUBLE:
+            return Double.longBitsToDouble(values[index]);
+        case INT:
+        case LONG:
+            return values[index];
+        default:
+            return defaultValue;
+        }
+    }
+
+    @Override
+    public Enumeration<String> keys() {
+        return keys(0);
+    }
+
+    /**
+     * @return the keys from this position on, in key order.
+     */
+    Enumeration<String> keys(int from) {
+        final KeyCursor cursor = new KeyCursor(from);
+        return new Enumeration<String>() {
+            @Override
+            public boolean hasMoreElements() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public String nextElement() {
+                return cursor.next();
+            }
+        };
+    }
+
+    @Override
+    public Enumeration<Object> elements() {
+        return new Enumeration<Object>() {
+            private int next;
+
+            @Override
+            public boolean hasMoreElements() {
+                return next < size;
+            }
+
+            @Override
+            public Object nextElement() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                return valueAt(next++);
+            }
+        };
+    }
+
+    /*
+     * Decodes keys in order, reusing the previous key rather than going back to the block head.
+     */
+    private final class KeyCursor {
+        int next;
+        private final StringBuilder key = new StringBuilder();
+
+        KeyCursor(int from) {
+            next = from;
+            if (from % BLOCK != 0 && from < size) {
+                key.append(keyAt(from - 1));
+            }
+        }
+
+        boolean hasNext() {
+            return next < size;
+        }
+
+        String next() {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            key.setLength(shared[next]);
+            key.append(keyChars, keyStarts[next], keyStarts[next + 1] - keyStarts[next]);
+            next++;
+            return key.toString();
+        }
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object remove(Object key) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return a read-only {@link Map} view, iterating in key order.
+     */
+    public Map<String, Object> asMap() {
+        if (map == null) {
+            map = new MapView();
+        }
+        return map;
+    }
+
+    private final class MapView extends AbstractMap<String, Object> {
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && indexOf((String) key) >= 0;
+        }
+
+        @Override
+        public Object get(Object key) {
+            return CompactDictionary.this.get(key);
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return new AbstractSet<Entry<String, Object>>() {
+                @Override
+                public int size() {
+                    return size;
+                }
+
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    final KeyCursor cursor = new KeyCursor(0);
+                    return new Iterator<Entry<String, Object>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return cursor.hasNext();
+                        }
+
+                        @Override
+                        public Entry<String, Object> next() {
+                            int index = cursor.next;
+                            return new SimpleImmutableEntry<>(cursor.next(), valueAt(index));
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /**
+     * Equal to another {@link CompactDictionary} or {@link Map} with the same entries.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof CompactDictionary) {
+            return asMap().equals(((CompactDictionary) o).asMap());
+        }
+        return o instanceof Map && asMap().equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return asMap().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return asMap().toString();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Convert a configuration file from one of the formats in {@link ConfigFormats} to another,
+ * choosing both by file suffix; typically a large generated yaml or json file to Smile or CBOR,
+ * which are much cheaper to parse. The conversion is token by token, so number types, and
+ * with them the flattened form, are preserved. A yaml stream of several documents becomes
+ * several root values.
+ * <p>
+ * Usage: {@code java com.basistech.yca.ConfigConverter input output}
+ */
+public final class ConfigConverter {
+
+    private ConfigConverter() {
+        //
+    }
+
+    /**
+     * Convert {@code input} into {@code output}. The output is written next to its final name
+     * and moved into place, so that a manager watching the directory never sees half of it.
+     */
+    public static void convert(Path input, Path output) throws IOException {
+        ObjectReader from = ConfigFormats.readerFor(input);
+        if (from == null) {
+            throw new IllegalArgumentException("Unsupported file name " + input);
+        }
+        ObjectReader to = ConfigFormats.readerFor(output);
+        if (to == null) {
+            throw new IllegalArgumentException("Unsupported file name " + output);
+        }
+        Path directory = output.toAbsolutePath().getParent();
+        // hidden, and with a suffix that the manager leaves alone.
+        Path temp = Files.createTempFile(directory, "." + output.getFileName().toString(), ".tmp");
+        try {
+            try (JsonParser parser = from.getFactory().createParser(input.toFile());
+                 OutputStream out = Files.newOutputStream(temp);
+                 JsonGenerator generator = to.getFactory().createGenerator(out)) {
+                while (ConfigurationBundle.nextDocument(parser) != null) {
+                    copy(parser, generator);
+                }
+            }
+            Files.move(temp, output, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /*
+     * Like JsonGenerator.copyCurrentStructure, except that a CBOR bignum is copied as a number.
+     */
+    private static void copy(JsonParser parser, JsonGenerator generator) throws IOException {
+        int depth = 0;
+        do {
+            JsonToken token = parser.getCurrentToken();
+            BigInteger bignum = JsonNodeFlattener.cborBignum(parser);
+            if (bignum != null) {
+                generator.writeNumber(bignum);
+            } else {
+                generator.copyCurrentEvent(parser);
+            }
+            if (token.isStructStart()) {
+                depth++;
+            } else if (token.isStructEnd()) {
+                depth--;
+            }
+        } while (depth > 0 && parser.nextToken() != null);
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: ConfigConverter input output");
+            System.exit(2);
+        }
+        try {
+            convert(Paths.get(args[0]), Paths.get(args[1]));
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Failed to convert " + args[0] + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.yca;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The file formats we know how to read, keyed by file suffix.
+ * Each format gets exactly one {@link ObjectReader}, built once. Readers are immutable and
+ * thread-safe, so every file event shares the same reader, and with it Jackson's
+ * deserializer caches and the factory's canonical symbol table.
+ * <p>
+ * Besides yaml and json, Jackson's binary formats, Smile ({@code .smile}) and CBOR
+ * ({@code .cbor}), are read through the same streaming flatten, and produce the same
+ * flattened form as the equivalent text. They are meant for large generated configurations;
+ * {@link ConfigConverter} makes them from text files.
+ */
+public final class ConfigFormats {
+
+    private static final Map<String, ObjectReader> READERS;
+
+    static {
+        Map<String, ObjectReader> readers = new HashMap<>();
+        ObjectReader json = newReader(new JsonFactory());
+        readers.put("json", json);
+        readers.put("js", json);
+        ObjectReader yaml = newReader(new YAMLFactory());
+        readers.put("yaml", yaml);
+        readers.put("yml", yaml);
+        readers.put("smile", newReader(new SmileFactory()));
+        readers.put("cbor", newReader(new CBORFactory()));
+        READERS = Collections.unmodifiableMap(readers);
+    }
+
+    private ConfigFormats() {
+        //
+    }
+
+    private static ObjectReader newReader(JsonFactory factory) {
+        // Both of these are Jackson's defaults; we depend on them, so say so.
+        factory.enable(JsonFactory.Feature.CANONICALIZE_FIELD_NAMES);
+        factory.enable(JsonFactory.Feature.INTERN_FIELD_NAMES);
+        return new ObjectMapper(factory).reader();
+    }
+
+    /**
+     * @return the suffix of the file name (without the dot), or null if there is none.
+     */
+    public static String suffix(Path filename) {
+        String name = filename.getFileName().toString();
+        int lastDot = name.lastIndexOf('.');
+        if (lastDot == -1) {
+            return null;
+        }
+        return name.substring(lastDot + 1);
+    }
+
+    /**
+     * @return the shared reader for files with this suffix, or null if the suffix is not supported.
+     */
+    public static ObjectReader readerFor(String suffix) {
+        return READERS.get(suffix);
+    }
+
+    /**
+     * @return the shared reader for this file, or null if its suffix is missing or not supported.
+     */
+    public static ObjectReader readerFor(Path filename) {
+        String suffix = suffix(filename);
+        return suffix == null ? null : READERS.get(suffix);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bundle file holds many configurations: its name ends in {@code .pids} before the format
+ * suffix (for example {@code services.pids.yaml}), and its top level is a map from names to
+ * configurations, where each name is a PID or {@code factoryPid-name}, as in an ordinary
+ * file name. A yaml bundle may be a stream of several such documents.
+ * <p>
+ * Each configuration made from a bundle has the bundle's URI with the name as its fragment
+ * as its config key, so that the manager can tell which configurations came from which
+ * bundle, and only touch the ones that changed.
+ */
+final class ConfigurationBundle {
+    static final String BUNDLE_SUFFIX = ".pids";
+
+    private ConfigurationBundle() {
+        //
+    }
+
+    /**
+     * @return true if this file name marks a bundle.
+     */
+    static boolean isBundle(Path file) {
+        String name = file.getFileName().toString();
+        int lastDot = name.lastIndexOf('.');
+        return lastDot > 0 && name.substring(0, lastDot).endsWith(BUNDLE_SUFFIX);
+    }
+
+    static String memberKey(String fileKey, String name) {
+        return fileKey + "#" + name;
+    }
+
+    /**
+     * @return the config key of the file this config key came from; itself, if it is not from a bundle.
+     */
+    static String fileKey(String configKey) {
+        int hash = configKey.indexOf('#');
+        return hash == -1 ? configKey : configKey.substring(0, hash);
+    }
+
+    /**
+     * @return the name within its bundle, or null if this config key is not from a bundle.
+     */
+    static String memberName(String configKey) {
+        int hash = configKey.indexOf('#');
+        return hash == -1 ? null : configKey.substring(hash + 1);
+    }
+
+    /**
+     * Flatten each configuration in the bundle straight from the token stream, in one pass.
+     * @return the flattened configurations by name, in the order they appear.
+     * @throws IOException if the input is malformed, is not a map of maps, or names a configuration twice.
+     */
+    static Map<String, Dictionary<String, Object>> read(JsonParser parser) throws IOException {
+        Map<String, Dictionary<String, Object>> members = new LinkedHashMap<>();
+        for (JsonToken token = nextDocument(parser); token != null; token = nextDocument(parser)) {
+            if (token == JsonToken.VALUE_NULL || (token == JsonToken.VALUE_STRING && parser.getText().isEmpty())) {
+                // an empty document.
+                continue;
+            }
+            if (token != JsonToken.START_OBJECT) {
+                throw new IOException("A bundle must be a map of configurations, not " + token);
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                if (name.isEmpty()) {
+                    throw new IOException("A configuration in a bundle has an empty name");
+                }
+                Dictionary<String, Object> dict = new Hashtable<>();
+                JsonToken value = parser.nextToken();
+                if (value == JsonToken.START_OBJECT) {
+                    JsonNodeFlattener.flatten(parser, "", dict);
+                } else if (value != JsonToken.VALUE_NULL) {
+                    throw new IOException("Configuration " + name + " in a bundle must be a map, not " + value);
+                }
+                if (members.put(name, dict) != null) {
+                    throw new IOException("Configuration " + name + " appears more than once in the bundle");
+                }
+            }
+        }
+        return members;
+    }
+
+    /**
+     * @return the first token of the next document in the stream, or null at the end of the stream.
+     * Some versions of the yaml parser return null between documents as well as at the end.
+     */
+    static JsonToken nextDocument(JsonParser parser) throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == null && !parser.isClosed()) {
+            token = parser.nextToken();
+        }
+        return token;
+    }
+}
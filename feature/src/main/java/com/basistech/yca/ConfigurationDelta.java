@@ -0,0 +1,185 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The difference between two flattened configurations, key by key: what was added,
+ * what was removed, and what changed value. Deltas are delivered to
+ * {@link ConfigurationDeltaListener}s after the configuration has been updated.
+ */
+public final class ConfigurationDelta {
+
+    /**
+     * What happened to the configuration as a whole.
+     */
+    public enum Kind {
+        CREATED,
+        UPDATED,
+        DELETED
+    }
+
+    private final Kind kind;
+    private final String pid;
+    private final String factoryPid;
+    private final String filename;
+    private final Map<String, Object> added;
+    private final Map<String, Object> removed;
+    private final Map<String, Object> changed;
+
+    ConfigurationDelta(Kind kind, String pid, String factoryPid, String filename,
+                       Map<String, Object> added, Map<String, Object> removed, Map<String, Object> changed) {
+        this.kind = kind;
+        this.pid = pid;
+        this.factoryPid = factoryPid;
+        this.filename = filename;
+        this.added = Collections.unmodifiableMap(added);
+        this.removed = Collections.unmodifiableMap(removed);
+        this.changed = Collections.unmodifiableMap(changed);
+    }
+
+    /**
+     * Compare two flattened configurations. Each key is looked up once in the other
+     * dictionary; nothing is copied.
+     * @param before the previous configuration, or null if there was none.
+     * @param after the new configuration, or null if it was deleted.
+     * @param ignored keys that are bookkeeping rather than configuration.
+     * @return the delta, with null pid and filename; see {@link #forConfiguration}.
+     */
+    static ConfigurationDelta between(Dictionary<String, ?> before, Dictionary<String, ?> after, Set<String> ignored) {
+        Map<String, Object> added = new HashMap<>();
+        Map<String, Object> removed = new HashMap<>();
+        Map<String, Object> changed = new HashMap<>();
+        if (after != null) {
+            for (Enumeration<String> keys = after.keys(); keys.hasMoreElements();) {
+                String key = keys.nextElement();
+                if (ignored.contains(key)) {
+                    continue;
+                }
+                Object value = after.get(key);
+                Object previous = before == null ? null : before.get(key);
+                if (previous == null) {
+                    added.put(key, value);
+                } else if (!sameValue(previous, value)) {
+                    changed.put(key, value);
+                }
+            }
+        }
+        if (before != null) {
+            for (Enumeration<String> keys = before.keys(); keys.hasMoreElements();) {
+                String key = keys.nextElement();
+                if (!ignored.contains(key) && (after == null || after.get(key) == null)) {
+                    removed.put(key, before.get(key));
+                }
+            }
+        }
+        Kind kind = before == null ? Kind.CREATED : after == null ? Kind.DELETED : Kind.UPDATED;
+        return new ConfigurationDelta(kind, null, null, null, added, removed, changed);
+    }
+
+    private static boolean sameValue(Object a, Object b) {
+        if (a instanceof byte[] && b instanceof byte[]) {
+            return Arrays.equals((byte[]) a, (byte[]) b);
+        }
+        return a.equals(b);
+    }
+
+    /**
+     * @return this delta, labelled with the configuration it applies to.
+     */
+    ConfigurationDelta forConfiguration(String newPid, String newFactoryPid, String newFilename) {
+        return new ConfigurationDelta(kind, newPid, newFactoryPid, newFilename, added, removed, changed);
+    }
+
+    /**
+     * @return true if no key was added, removed or changed.
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return the PID of the configuration; for a factory configuration, its generated PID.
+     */
+    public String getPid() {
+        return pid;
+    }
+
+    /**
+     * @return the factory PID, or null if this is not a factory configuration.
+     */
+    public String getFactoryPid() {
+        return factoryPid;
+    }
+
+    /**
+     * @return the file the configuration comes from, as a URI.
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * @return the keys that are new, with their values.
+     */
+    public Map<String, Object> getAdded() {
+        return added;
+    }
+
+    /**
+     * @return the keys that are gone, with the values they had.
+     */
+    public Map<String, Object> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return the keys whose values changed, with their new values.
+     */
+    public Map<String, Object> getChanged() {
+        return changed;
+    }
+
+    /**
+     * @return every key that was added, removed or changed.
+     */
+    public Set<String> getKeys() {
+        Set<String> keys = new HashSet<>(added.keySet());
+        keys.addAll(removed.keySet());
+        keys.addAll(changed.keySet());
+        return keys;
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + (factoryPid == null ? pid : factoryPid + "-" + pid) + ": "
+                + added.size() + " added, " + removed.size() + " removed, " + changed.size() + " changed";
+    }
+}
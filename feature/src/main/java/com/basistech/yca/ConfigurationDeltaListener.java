@@ -0,0 +1,29 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+/**
+ * Register one of these as an OSGi service to hear about each change the manager makes,
+ * key by key, instead of re-reading the whole configuration.
+ * Calls come from the thread that updated the configuration, after the update; for any
+ * one PID they are in order. Keep them quick.
+ */
+public interface ConfigurationDeltaListener {
+
+    void configurationChanged(ConfigurationDelta delta);
+}
@@ -0,0 +1,174 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.yca;
+
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The manager's own map from config key (file URI) to the Configuration made from that file.
+ * It is loaded with one {@code listConfigurations} call and then kept current by the manager
+ * as it creates and deletes configurations, so that handling an event does not mean
+ * a filter search over every configuration in ConfigurationAdmin. If an entry turns out
+ * to be stale (someone else deleted or took over the configuration), the whole index
+ * is reloaded from ConfigurationAdmin.
+ * <p>
+ * Lookups do not lock, since the apply stage may run on many threads. A reload builds
+ * the new map on the side and swaps it in, so a lookup sees either the old map or the
+ * new one, never a half-built one; changes to the index wait for a reload in progress.
+ */
+final class ConfigurationIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(ConfigurationIndex.class);
+    private final ConfigurationAdmin configurationAdmin;
+    private final String filenameKey;
+    // sorted, so that the configurations from one bundle file are a range.
+    private volatile ConcurrentNavigableMap<String, Configuration> configurations = new ConcurrentSkipListMap<>();
+    private final Histogram reloadLatency;
+
+    /**
+     * @param reloadLatency records how long each {@link #reload()} takes, in microseconds.
+     */
+    ConfigurationIndex(ConfigurationAdmin configurationAdmin, String filenameKey, Histogram reloadLatency) {
+        this.configurationAdmin = configurationAdmin;
+        this.filenameKey = filenameKey;
+        this.reloadLatency = reloadLatency;
+    }
+
+    /**
+     * Replace the contents of the index with what ConfigurationAdmin has. Configurations
+     * we made that the listing does not show yet, because they have not been updated, or
+     * were updated after it was taken, are kept.
+     */
+    synchronized void reload() throws IOException {
+        long start = System.nanoTime();
+        Configuration[] all;
+        try {
+            all = configurationAdmin.listConfigurations("(" + filenameKey + "=*)");
+        } catch (InvalidSyntaxException e) {
+            throw new RuntimeException(e);
+        }
+        ConcurrentNavigableMap<String, Configuration> fresh = new ConcurrentSkipListMap<>();
+        if (all != null) {
+            for (Configuration configuration : all) {
+                Dictionary<String, Object> props = properties(configuration);
+                if (props != null && props.get(filenameKey) != null) {
+                    fresh.put(props.get(filenameKey).toString(), configuration);
+                }
+            }
+        }
+        for (Map.Entry<String, Configuration> entry : configurations.entrySet()) {
+            if (!fresh.containsKey(entry.getKey()) && isPending(entry.getKey(), entry.getValue())) {
+                fresh.put(entry.getKey(), entry.getValue());
+            }
+        }
+        configurations = fresh;
+        reloadLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        LOG.info("Indexed {} configurations from files", fresh.size());
+    }
+
+    /**
+     * @return the configuration for this config key, or null if there is none.
+     */
+    Configuration get(String configKey) throws IOException {
+        Configuration configuration = configurations.get(configKey);
+        if (configuration != null && !isLive(configuration)) {
+            reconcile(configKey);
+            configuration = configurations.get(configKey);
+        }
+        return configuration;
+    }
+
+    synchronized void put(String configKey, Configuration configuration) {
+        configurations.put(configKey, configuration);
+    }
+
+    synchronized void remove(String configKey) {
+        configurations.remove(configKey);
+    }
+
+    boolean contains(String configKey) {
+        return configurations.containsKey(configKey);
+    }
+
+    /**
+     * @return a snapshot of the config keys in the index.
+     */
+    Set<String> keys() {
+        return new HashSet<>(configurations.keySet());
+    }
+
+    /**
+     * @return a snapshot of the config keys in the index that start with this prefix.
+     */
+    Set<String> keysWithPrefix(String prefix) {
+        return new HashSet<>(configurations.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet());
+    }
+
+    int size() {
+        return configurations.size();
+    }
+
+    /**
+     * The index and ConfigurationAdmin disagree about this key; start over.
+     */
+    void reconcile(String configKey) throws IOException {
+        LOG.warn("Configuration for {} changed outside of this manager; re-indexing", configKey);
+        reload();
+    }
+
+    /*
+     * Still ours: not deleted, and either not filled in yet or filled in from this key.
+     */
+    private boolean isPending(String configKey, Configuration configuration) {
+        if (!isLive(configuration)) {
+            return false;
+        }
+        Dictionary<String, Object> props = properties(configuration);
+        return props == null || configKey.equals(props.get(filenameKey));
+    }
+
+    private static Dictionary<String, Object> properties(Configuration configuration) {
+        try {
+            return configuration.getProperties();
+        } catch (IllegalStateException e) {
+            // deleted since it was listed.
+            return null;
+        }
+    }
+
+    private static boolean isLive(Configuration configuration) {
+        try {
+            configuration.getPid();
+            return true;
+        } catch (IllegalStateException e) {
+            // thrown for a deleted configuration.
+            return false;
+        }
+    }
+}
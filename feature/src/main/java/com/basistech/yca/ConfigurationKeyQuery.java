@@ -0,0 +1,63 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * Questions about the flattened keys of the configurations a {@link FlatteningConfigFileManager}
+ * made, answered from an index instead of a scan of every configuration. The manager
+ * registers one as an OSGi service, with its {@code configurationDirectory} as a service
+ * property, and keeps it current as files change.
+ * <p>
+ * Keys are flattened keys, such as {@code solr.cores[0].name}; the manager's bookkeeping keys,
+ * {@code service.pid} and {@code service.factoryPid} are left out. PIDs are those of the
+ * configurations in ConfigurationAdmin, so for a factory configuration, the generated PID.
+ * Results are copies, and do not change with later updates. Key order is that of the
+ * flattened keys, where array indexes go by number, so {@code a[2]} comes before {@code a[10]}.
+ */
+public interface ConfigurationKeyQuery {
+
+    /**
+     * @return the PIDs of the configurations that have this key; empty if there are none.
+     */
+    Set<String> getPids(String key);
+
+    /**
+     * @return the keys that start with this prefix (all keys, for ""), each with the PIDs
+     * that have it, in key order.
+     */
+    SortedMap<String, Set<String>> getKeysWithPrefix(String prefix);
+
+    /**
+     * @return the keys from {@code fromKey}, inclusive, to {@code toKey}, exclusive, each with
+     * the PIDs that have it, in key order.
+     */
+    SortedMap<String, Set<String>> getKeys(String fromKey, String toKey);
+
+    /**
+     * @return the PIDs of the configurations that have any key with this prefix.
+     */
+    Set<String> getPidsWithPrefix(String prefix);
+
+    /**
+     * @return the keys of this configuration, in order; empty if the manager did not make it.
+     */
+    Set<String> getKeysOf(String pid);
+}
@@ -0,0 +1,140 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.yca;
+
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses bursts of watch events for the same file into one action. Editors and rsync
+ * tend to produce CREATE, MODIFY, MODIFY for a single save; each event restarts the file's
+ * quiet period, and when the quiet period runs out, the file is processed once,
+ * according to the last event seen: a delete, or an add-or-update.
+ * Only the watcher thread uses this, so it is not synchronized, except for the counters.
+ */
+final class EventCoalescer {
+
+    enum Action {
+        ADD_OR_UPDATE,
+        DELETE
+    }
+
+    private static final class Pending {
+        final Action action;
+        final long deadline;
+        // when the first event of this burst arrived.
+        final long since;
+
+        Pending(Action action, long deadline, long since) {
+            this.action = action;
+            this.deadline = deadline;
+            this.since = since;
+        }
+    }
+
+    private final long quietPeriodNanos;
+    // Every event moves its file to the end, so deadlines increase from head to tail.
+    private final LinkedHashMap<Path, Pending> pending = new LinkedHashMap<>();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong applied = new AtomicLong();
+    private final Histogram delay;
+
+    EventCoalescer(long quietPeriodNanos) {
+        this(quietPeriodNanos, new Histogram());
+    }
+
+    /**
+     * @param delay records, in microseconds, how long each file waited between its first
+     *              event and coming out of {@link #drain}.
+     */
+    EventCoalescer(long quietPeriodNanos, Histogram delay) {
+        this.quietPeriodNanos = quietPeriodNanos;
+        this.delay = delay;
+    }
+
+    void add(Path file, Action action, long now) {
+        add(file, action, 1, now);
+    }
+
+    /**
+     * @param repeats how many events this stands for; the watch service folds repeats
+     *                of the same event into one with a count.
+     */
+    void add(Path file, Action action, int repeats, long now) {
+        received.addAndGet(repeats);
+        Pending previous = pending.remove(file);
+        pending.put(file, new Pending(action, now + quietPeriodNanos, previous == null ? now : previous.since));
+    }
+
+    boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * @return how long until the next file is due, zero if one is due already.
+     * Only meaningful if {@link #isEmpty()} is false.
+     */
+    long nanosUntilNext(long now) {
+        long deadline = pending.values().iterator().next().deadline;
+        return Math.max(0, deadline - now);
+    }
+
+    /**
+     * Remove the files whose quiet period has run out.
+     * @return their actions, in the order of their last events.
+     */
+    List<Map.Entry<Path, Action>> drain(long now) {
+        if (pending.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Map.Entry<Path, Action>> due = new ArrayList<>();
+        Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Pending> entry = it.next();
+            if (entry.getValue().deadline - now > 0) {
+                break;
+            }
+            due.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue().action));
+            delay.record(TimeUnit.NANOSECONDS.toMicros(now - entry.getValue().since));
+            it.remove();
+        }
+        applied.addAndGet(due.size());
+        return due;
+    }
+
+    /**
+     * @return the number of watch events handed to {@link #add}.
+     */
+    long eventsReceived() {
+        return received.get();
+    }
+
+    /**
+     * @return the number of actions that came out of {@link #drain}.
+     */
+    long eventsApplied() {
+        return applied.get();
+    }
+}
@@ -0,0 +1,170 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads whole configuration files for digesting and parsing. Files up to the direct threshold
+ * are read with bulk channel reads into a per-thread buffer that is reused from file to file;
+ * larger files are read into a direct buffer of their own, so that a tens-of-megabytes lookup
+ * table does not need a heap array on top of the tree built from it. Files are not mapped:
+ * a mapped file that is truncated while it is parsed faults the thread reading it, and on
+ * some platforms a mapping keeps the file from being replaced.
+ * <p>
+ * A {@link Content} is only good until the same thread reads the next file.
+ */
+final class FileContents {
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[INITIAL_BUFFER_SIZE];
+        }
+    };
+
+    private final long directThreshold;
+
+    FileContents(long directThreshold) {
+        this.directThreshold = directThreshold;
+    }
+
+    /**
+     * The bytes of one file, either in the thread's buffer or in a direct buffer.
+     */
+    static final class Content {
+        private final byte[] array;
+        private final int length;
+        private final ByteBuffer direct;
+
+        private Content(byte[] array, int length, ByteBuffer direct) {
+            this.array = array;
+            this.length = length;
+            this.direct = direct;
+        }
+
+        boolean isDirect() {
+            return direct != null;
+        }
+
+        int length() {
+            return direct == null ? length : direct.remaining();
+        }
+
+        byte[] digest() {
+            if (direct == null) {
+                return FileFingerprint.digest(array, 0, length);
+            }
+            return FileFingerprint.digest(direct.duplicate());
+        }
+
+        /**
+         * @return a copy of the bytes, which outlives this content.
+         */
+        byte[] toByteArray() {
+            if (direct == null) {
+                return Arrays.copyOf(array, length);
+            }
+            byte[] bytes = new byte[direct.remaining()];
+            direct.duplicate().get(bytes);
+            return bytes;
+        }
+
+        JsonParser createParser(JsonFactory factory) throws IOException {
+            if (direct == null) {
+                return factory.createParser(array, 0, length);
+            }
+            return factory.createParser(new ByteBufferBackedInputStream(direct.duplicate()));
+        }
+    }
+
+    /**
+     * @param size the size from the file's attributes; the file may have changed since, and
+     *             what is actually there is what gets read.
+     */
+    Content read(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (size > directThreshold) {
+                long actual = channel.size();
+                if (actual > directThreshold) {
+                    return new Content(null, 0, readDirect(channel, actual));
+                }
+            }
+            byte[] buffer = BUFFERS.get();
+            if (buffer.length < size + 1) {
+                // one spare byte, so that reaching the end does not need a second buffer.
+                buffer = newBuffer(size + 1);
+            }
+            int length = 0;
+            for (;;) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, (int) Math.min(Integer.MAX_VALUE - 8, 2L * buffer.length));
+                }
+                int read = channel.read(ByteBuffer.wrap(buffer, length, buffer.length - length));
+                if (read < 0) {
+                    break;
+                }
+                length += read;
+            }
+            if (buffer.length <= directThreshold + 1) {
+                BUFFERS.set(buffer);
+            }
+            return new Content(buffer, length, null);
+        }
+    }
+
+    /*
+     * Read to the end of the file, however long it turns out to be.
+     */
+    private static ByteBuffer readDirect(FileChannel channel, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(checkSize(size + 1));
+        for (;;) {
+            if (!buffer.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocateDirect(checkSize(2L * buffer.capacity()));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            if (channel.read(buffer) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] newBuffer(long size) throws IOException {
+        return new byte[checkSize(size)];
+    }
+
+    private static int checkSize(long size) throws IOException {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IOException("File too large to read into memory: " + size + " bytes");
+        }
+        return (int) size;
+    }
+}
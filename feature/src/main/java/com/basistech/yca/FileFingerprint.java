@@ -0,0 +1,103 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.yca;
+
+import java.nio.ByteBuffer;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * What a file looked like when we last applied it: size, modification time and a digest
+ * of the contents. A matching size and time lets us skip even reading the file; a matching
+ * digest lets us skip parsing it.
+ */
+final class FileFingerprint {
+    /*
+     * Some filesystems keep modification times to the second (or worse). A file that was
+     * fingerprinted within this long of its modification time could be written again
+     * without the time changing, so for such a file we don't trust the size and time,
+     * and always fall back to the digest.
+     */
+    static final long MTIME_GRANULARITY_MILLIS = 2000;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    final long size;
+    final long modified;
+    final long observed;
+    final byte[] digest;
+
+    FileFingerprint(long size, long modified, long observed, byte[] digest) {
+        this.size = size;
+        this.modified = modified;
+        this.observed = observed;
+        this.digest = digest;
+    }
+
+    static FileFingerprint of(BasicFileAttributes attributes, byte[] digest) {
+        return new FileFingerprint(attributes.size(), attributes.lastModifiedTime().toMillis(), System.currentTimeMillis(), digest);
+    }
+
+    /**
+     * @return true if the file has the same size and time as before, and the time is old
+     * enough to be trusted.
+     */
+    boolean unchanged(BasicFileAttributes attributes) {
+        return size == attributes.size()
+                && modified == attributes.lastModifiedTime().toMillis()
+                && observed - modified > MTIME_GRANULARITY_MILLIS;
+    }
+
+    boolean sameContent(byte[] otherDigest) {
+        return Arrays.equals(digest, otherDigest);
+    }
+
+    String digestHex() {
+        return hex(digest);
+    }
+
+    static byte[] digest(byte[] content, int offset, int length) {
+        MessageDigest messageDigest = newDigest();
+        messageDigest.update(content, offset, length);
+        return messageDigest.digest();
+    }
+
+    static byte[] digest(ByteBuffer content) {
+        MessageDigest messageDigest = newDigest();
+        messageDigest.update(content);
+        return messageDigest.digest();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // every JRE is required to have SHA-1.
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int x = 0; x < bytes.length; x++) {
+            chars[2 * x] = HEX[(bytes[x] >> 4) & 0xf];
+            chars[2 * x + 1] = HEX[bytes[x] & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,348 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * A read-only view of one node of a flattened configuration, which is turned back into
+ * a {@link JsonNode} only for the parts that are asked for. For example,
+ * {@code FlattenedView.of(config).at("database.pool").toJsonNode()} builds just the
+ * pool object, where {@link JsonNodeFlattener#unflatten(Dictionary)} would build the
+ * whole tree.
+ *
+ * <p>The keys are kept in {@link JsonNodeFlattener#KEY_ORDER}, in which the keys below any
+ * node are contiguous, so each node is a range of positions, found by binary search.
+ * A {@link CompactDictionary} is already in that order and is used directly; any other
+ * dictionary has its keys sorted once, by {@link #of}. The view does not follow later
+ * changes to the dictionary.
+ */
+public final class FlattenedView {
+    private final Index index;
+    private final String path;
+    private final int start;
+    private final int end;
+
+    private FlattenedView(Index index, String path, int start, int end) {
+        this.index = index;
+        this.path = path;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * @return a view of the root of a flattened configuration.
+     */
+    public static FlattenedView of(Dictionary<String, ?> config) {
+        Index index;
+        if (config instanceof CompactDictionary) {
+            index = new CompactIndex((CompactDictionary) config);
+        } else {
+            index = new SortedIndex(config);
+        }
+        return new FlattenedView(index, "", 0, index.size());
+    }
+
+    /**
+     * @return the path of this node, in the form of the flattened keys; empty for the root.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return true if there are no keys at or below this node.
+     */
+    public boolean isMissing() {
+        return start == end;
+    }
+
+    /**
+     * @return the number of flattened keys at or below this node.
+     */
+    public int keyCount() {
+        return end - start;
+    }
+
+    /**
+     * @return true if this node is a single value rather than an object or an array.
+     */
+    public boolean isValue() {
+        return end - start == 1 && index.key(start).length() == path.length();
+    }
+
+    public boolean isArray() {
+        return !isMissing() && !isValue() && index.key(start).charAt(path.length()) == '[';
+    }
+
+    public boolean isObject() {
+        return !isMissing() && !isValue() && !isArray();
+    }
+
+    /**
+     * @return the value of this node as it is stored in the dictionary (so a JSON null is
+     * {@link JsonNodeFlattener#NULL}), or null if it is not a single value.
+     */
+    public Object getValue() {
+        return isValue() ? index.value(start) : null;
+    }
+
+    /**
+     * @return the view of a field of this object; it is missing if there is no such field.
+     */
+    public FlattenedView get(String field) {
+        return find(path.isEmpty() ? field : path + "." + field);
+    }
+
+    /**
+     * @return the view of an element of this array; it is missing if there is no such element.
+     */
+    public FlattenedView get(int element) {
+        return find(path + "[" + element + "]");
+    }
+
+    /**
+     * @param relativePath a path below this node, in the form of the flattened keys,
+     *                     for example {@code database.pool} or {@code hosts[1]}.
+     * @return the view of that node; it is missing if there is no such node.
+     */
+    public FlattenedView at(String relativePath) {
+        if (relativePath.isEmpty()) {
+            return this;
+        }
+        if (path.isEmpty() || relativePath.charAt(0) == '[') {
+            return find(path + relativePath);
+        }
+        return find(path + "." + relativePath);
+    }
+
+    /**
+     * @return the names of the children of this node, in key order: field names for an
+     * object, and indices such as {@code [0]} for an array. Either can be passed to
+     * {@link #at(String)}. Each child costs a binary search, not a pass over its keys.
+     */
+    public List<String> childNames() {
+        if (isMissing() || isValue()) {
+            return Collections.emptyList();
+        }
+        List<String> names = new ArrayList<>();
+        boolean array = isArray();
+        int offset = array || path.isEmpty() ? path.length() : path.length() + 1;
+        int x = start;
+        while (x < end) {
+            String key = index.key(x);
+            int childEnd = array ? key.indexOf(']', offset) + 1 : segmentEnd(key, offset);
+            names.add(key.substring(offset, childEnd));
+            x = subtreeEnd(key.substring(0, childEnd), x);
+        }
+        return names;
+    }
+
+    /**
+     * Build the tree for this node only. The root always comes back as an object, as
+     * {@link JsonNodeFlattener#unflatten(Dictionary)} would build it.
+     * @return the node, or null if it is missing.
+     */
+    public JsonNode toJsonNode() {
+        ObjectNode root = JsonNodeFactory.instance.objectNode();
+        JsonNodeFlattener.TreeBuilder builder = new JsonNodeFlattener.TreeBuilder(root);
+        if (path.isEmpty()) {
+            KeyIterator keys = index.keys(start);
+            for (int x = start; x < end; x++) {
+                builder.add(keys.next(), index.value(x));
+            }
+            return root;
+        }
+        if (isMissing()) {
+            return null;
+        }
+        // Re-root the keys under a one-letter field, so that the builder, which starts
+        // from an object, can build arrays and values as well.
+        KeyIterator keys = index.keys(start);
+        for (int x = start; x < end; x++) {
+            builder.add("v" + keys.next().substring(path.length()), index.value(x));
+        }
+        return root.get("v");
+    }
+
+    @Override
+    public String toString() {
+        return "FlattenedView{" + path + ", " + keyCount() + " keys}";
+    }
+
+    private FlattenedView find(String nodePath) {
+        // Only one of these can be present; none of them sorts before the node's own key.
+        int x = lowerBound(nodePath, start, end);
+        if (x < end && index.key(x).equals(nodePath)) {
+            return new FlattenedView(index, nodePath, x, x + 1);
+        }
+        for (String prefix : new String[] {nodePath + ".", nodePath + "[" }) {
+            int first = lowerBound(prefix, x, end);
+            if (first < end && index.key(first).startsWith(prefix)) {
+                return new FlattenedView(index, nodePath, first, prefixEnd(prefix, first, end));
+            }
+        }
+        return new FlattenedView(index, nodePath, x, x);
+    }
+
+    // the end of the keys at or below the node whose path is given, the first of them at 'from'.
+    private int subtreeEnd(String nodePath, int from) {
+        if (index.key(from).length() == nodePath.length()) {
+            return from + 1;
+        }
+        return prefixEnd(nodePath + index.key(from).charAt(nodePath.length()), from, end);
+    }
+
+    // the first position in [from, to) that holds a key not before the target.
+    private int lowerBound(String target, int from, int to) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (JsonNodeFlattener.KEY_ORDER.compare(index.key(mid), target) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // the first position in [from, to) that does not start with the prefix; the keys at
+    // 'from' and on up to that point all do.
+    private int prefixEnd(String prefix, int from, int to) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (index.key(mid).startsWith(prefix)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int segmentEnd(String key, int from) {
+        for (int x = from; x < key.length(); x++) {
+            char c = key.charAt(x);
+            if (c == '.' || c == '[') {
+                return x;
+            }
+        }
+        return key.length();
+    }
+
+    private interface KeyIterator {
+        String next();
+    }
+
+    private abstract static class Index {
+        abstract int size();
+
+        abstract String key(int position);
+
+        abstract Object value(int position);
+
+        KeyIterator keys(final int from) {
+            return new KeyIterator() {
+                private int next = from;
+
+                @Override
+                public String next() {
+                    return key(next++);
+                }
+            };
+        }
+    }
+
+    private static final class SortedIndex extends Index {
+        private final Dictionary<String, ?> config;
+        private final String[] keys;
+
+        SortedIndex(Dictionary<String, ?> config) {
+            this.config = config;
+            keys = new String[config.size()];
+            int x = 0;
+            for (Enumeration<String> keyEnum = config.keys(); keyEnum.hasMoreElements();) {
+                keys[x++] = keyEnum.nextElement();
+            }
+            Arrays.sort(keys, JsonNodeFlattener.KEY_ORDER);
+        }
+
+        @Override
+        int size() {
+            return keys.length;
+        }
+
+        @Override
+        String key(int position) {
+            return keys[position];
+        }
+
+        @Override
+        Object value(int position) {
+            return config.get(keys[position]);
+        }
+    }
+
+    private static final class CompactIndex extends Index {
+        private final CompactDictionary config;
+
+        CompactIndex(CompactDictionary config) {
+            this.config = config;
+        }
+
+        @Override
+        int size() {
+            return config.size();
+        }
+
+        @Override
+        String key(int position) {
+            return config.keyAt(position);
+        }
+
+        @Override
+        Object value(int position) {
+            return config.valueAt(position);
+        }
+
+        // decode a run of keys front to back, rather than each from its block head.
+        @Override
+        KeyIterator keys(int from) {
+            final Enumeration<String> keys = config.keys(from);
+            return new KeyIterator() {
+                @Override
+                public String next() {
+                    return keys.nextElement();
+                }
+            };
+        }
+    }
+}
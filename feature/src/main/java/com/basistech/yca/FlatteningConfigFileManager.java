@@ -16,12 +16,11 @@
 
 package com.basistech.yca;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
-import org.apache.felix.utils.collections.DictionaryAsMap;
 import org.osgi.framework.Constants;
-import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
 import org.osgi.service.component.ComponentContext;
@@ -31,77 +30,345 @@ import org.osgi.service.component.annotations.ConfigurationPolicy;
 import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import java.io.File;
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
-import java.nio.file.FileSystems;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
-
-import static java.nio.file.StandardWatchEventKinds.*;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Watch for files in a specified directory, parse them as yaml or json,
- * and inject them into the ConfigurationAdmin service as flattened key-value sets.
- *
+ * Watch for files in a specified directory, parse them as yaml, json, smile or cbor
+ * (see {@link ConfigFormats}), and inject them into the ConfigurationAdmin service as flattened key-value sets.
+ * <p>
+ * Component properties:
+ * <dl>
+ *     <dt>configurationDirectory</dt><dd>the directory to watch (required).</dd>
+ *     <dt>changeSource</dt><dd>how to find out about changes: {@code watch} (the default) uses the
+ *     filesystem's watch service; {@code poll} lists the directory every pollIntervalMillis and
+ *     compares sizes and modification times, for filesystems where watching is slow or unreliable.</dd>
+ *     <dt>pollIntervalMillis</dt><dd>with changeSource=poll, the time between listings; default 1000.</dd>
+ *     <dt>recursive</dt><dd>if true, also watch the subdirectories of the configuration directory,
+ *     including ones created later. PIDs still come from file names alone, so they must be unique
+ *     across the whole tree.</dd>
+ *     <dt>inventoryThreads</dt><dd>threads used to parse files during the initial inventory;
+ *     1 (the default) does it all on the watcher thread.</dd>
+ *     <dt>quietPeriodMillis</dt><dd>how long a file must go without further events
+ *     before it is processed; 0 (the default) processes each batch of events as it arrives.</dd>
+ *     <dt>persistDigest</dt><dd>if true, store a digest of each file's contents in its configuration,
+ *     so that files that have not changed since the last run are not parsed again on startup.</dd>
+ *     <dt>rescanIntervalSeconds</dt><dd>if positive, compare the whole directory with ConfigurationAdmin
+ *     this often, in case events were missed. The directory is always rescanned if the watch service
+ *     reports that events overflowed.</dd>
+ *     <dt>directThresholdBytes</dt><dd>files larger than this are read into a direct buffer of their
+ *     own for parsing, rather than into a reused heap buffer; default 4MB.</dd>
+ *     <dt>applyThreads</dt><dd>if positive, update ConfigurationAdmin from a pool of this many threads,
+ *     keeping the order of changes for each PID; 0 (the default) updates it from the watcher thread.</dd>
+ *     <dt>applyQueueLimit</dt><dd>with applyThreads, how many changes may wait to be applied before
+ *     the watcher stops to let them catch up; default 1000.</dd>
+ *     <dt>sectionThresholdBytes</dt><dd>if positive, yaml files at least this large are flattened one
+ *     top-level section at a time, and the result is kept, so that when the file changes only the
+ *     sections that changed are parsed again. For each such file this keeps its raw bytes and another
+ *     flattened copy in memory, on top of the copies the manager and ConfigurationAdmin already hold.
+ *     0 (the default) turns it off.</dd>
+ *     <dt>snapshotFile</dt><dd>where to keep a snapshot of what was applied, so that on restart files
+ *     whose size and modification time have not changed are not read at all. Defaults to a file in the
+ *     bundle's data area; an empty value turns it off.</dd>
+ * </dl>
+ * <p>
+ * A file whose name ends in {@code .pids} before its suffix, such as {@code services.pids.yaml}, is
+ * a bundle of many configurations, keyed by PID; see {@link ConfigurationBundle}. Only the
+ * configurations in a bundle that changed are updated when it is edited, and the ones it no
+ * longer has are deleted. A PID can only come from one place: if a second file or bundle names
+ * a PID that another already makes, it is logged and ignored until the first lets go of it.
+ * Files ending in {@code .tmp} are left alone, so that a file can be written under such a name
+ * and moved into place.
+ * <p>
+ * The manager's counters and latencies are published as a {@link FlatteningConfigFileManagerMXBean},
+ * both as an OSGi service and through JMX. An index of the keys of the configurations it made is
+ * published as a {@link ConfigurationKeyQuery} service.
  */
 @Component(immediate = true, configurationPolicy = ConfigurationPolicy.REQUIRE)
 public class FlatteningConfigFileManager {
+    static final String FILENAME_PROPERTY_KEY = FlatteningConfigFileManager.class.getName() + ".filename";
+    static final String DIGEST_PROPERTY_KEY = FlatteningConfigFileManager.class.getName() + ".digest";
     private static final Logger LOG = LoggerFactory.getLogger(FlatteningConfigFileManager.class);
-    private static final String FILENAME_PROPERTY_KEY = FlatteningConfigFileManager.class.getName() + ".filename";
+    private static final String TEMP_SUFFIX = "tmp";
+    private static final int INVENTORY_FILES_PER_THREAD = 4;
+    private static final Set<String> BOOKKEEPING_KEYS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            FILENAME_PROPERTY_KEY, DIGEST_PROPERTY_KEY, Constants.SERVICE_PID, ConfigurationAdmin.SERVICE_FACTORYPID)));
     private Path configurationDirectory;
-    private WatchService watchService;
-    private WatchKey watchKey;
+    private boolean recursive;
+    private int inventoryThreads;
+    private EventCoalescer coalescer;
+    private boolean persistDigest;
+    private long rescanIntervalNanos;
+    private final AtomicLong rescans = new AtomicLong();
+    private final ConcurrentMap<String, FileFingerprint> fingerprints = new ConcurrentHashMap<>();
+    // What we last gave ConfigurationAdmin for each file, to compute deltas against;
+    // kept compact, since it is a second copy of every configuration.
+    private final ConcurrentMap<String, Dictionary<String, ?>> applied = new ConcurrentHashMap<>();
+    // ConfigurationAdmin's change count after we last applied each file, to tell whether a
+    // snapshot entry still describes the configuration.
+    private final ConcurrentMap<String, Long> appliedChangeCounts = new ConcurrentHashMap<>();
+    private final List<ConfigurationDeltaListener> deltaListeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong filesParsed = new AtomicLong();
+    private final CountDownLatch inventoryComplete = new CountDownLatch(1);
+    private ChangeSource changeSource;
+    private ChangeSource givenChangeSource;
+    private FileContents fileContents;
+    private SectionedFlattener sectionedFlattener;
+    private long sectionThreshold;
+    private Path snapshotFile;
     private Thread watcherThread;
     private ConfigurationAdmin configurationAdmin;
+    private ConfigurationIndex configurationIndex;
+    private KeyedSerialExecutor applyExecutor;
+    private final ManagerMetrics metrics = new ManagerMetrics(this);
+    private ServiceRegistration<FlatteningConfigFileManagerMXBean> metricsRegistration;
+    private final KeyIndex keyIndex = new KeyIndex(BOOKKEEPING_KEYS);
+    // The rest are only used from the watcher thread, which decides what is applied.
+    // The config key each PID is made from, so that two files do not fight over one configuration.
+    private final Map<String, String> pidOwners = new HashMap<>();
+    // Files refused a PID that another file has, to try again when that one lets go of it.
+    private final Map<String, Set<Path>> refused = new HashMap<>();
+    // The config keys of each bundle's configurations, as last handed to the apply stage.
+    private final Map<String, Set<String>> dispatchedMembers = new HashMap<>();
+    private ServiceRegistration<ConfigurationKeyQuery> queryRegistration;
+    private ObjectName metricsName;
 
     private class WatcherThread extends Thread {
 
         @Override
         public void run() {
-            initialInventory();
+            try {
+                initialInventory();
+            } finally {
+                inventoryComplete.countDown();
+            }
             watchLoop();
         }
     }
 
     private void initialInventory() {
         // The watcher only detects _changes_
-        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(configurationDirectory)) {
-            for (Path path : directoryStream) {
-                processAddOrUpdate(path);
-            }
+        List<Path> paths;
+        try {
+            paths = changeSource.listFiles();
         } catch (IOException ex) {
-            LOG.error("Error listing initial directory contents for " + configurationDirectory, ex);
+            LOG.error("Error listing initial directory contents for {}", configurationDirectory, ex);
+            return;
+        }
+        // Apply in a predictable order, however the parsing is done.
+        Collections.sort(paths);
+        long start = System.nanoTime();
+        // Files that are still here keep the PIDs they have, whatever order they come in.
+        Set<String> listed = new HashSet<>();
+        for (Path path : paths) {
+            listed.add(toConfigKey(path));
+        }
+        for (String configKey : configurationIndex.keys()) {
+            if (listed.contains(ConfigurationBundle.fileKey(configKey))) {
+                String pid = formatPid(pidOf(configKey));
+                if (!pidOwners.containsKey(pid)) {
+                    pidOwners.put(pid, configKey);
+                }
+            }
+        }
+        for (Iterator<Path> it = paths.iterator(); it.hasNext();) {
+            if (isTemporary(it.next())) {
+                it.remove();
+            }
+        }
+        if (inventoryThreads > 1) {
+            parallelInventory(paths);
+        } else {
+            for (Path path : paths) {
+                process(path, EventCoalescer.Action.ADD_OR_UPDATE);
+            }
+        }
+        if (applyExecutor != null) {
+            try {
+                applyExecutor.awaitIdle();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        writeSnapshot();
+        LOG.info("Initial inventory of {} files in {} took {}ms", paths.size(), configurationDirectory,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /*
+     * Reading, parsing and flattening are independent per file, so they run on a pool.
+     * The results are handed to the apply stage from this thread in the order of the listing,
+     * so the end state is the same as the sequential inventory. Only a few files per thread
+     * are in flight at a time, so that parsed files waiting their turn do not add up to the
+     * whole directory.
+     */
+    private void parallelInventory(List<Path> paths) {
+        ExecutorService executor = Executors.newFixedThreadPool(inventoryThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "yca-inventory-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            int window = inventoryThreads * INVENTORY_FILES_PER_THREAD;
+            Deque<Future<ParsedFile>> parsed = new ArrayDeque<>(window);
+            int submitted = 0;
+            for (int x = 0; x < paths.size(); x++) {
+                while (submitted < paths.size() && submitted - x < window) {
+                    final Path path = paths.get(submitted++);
+                    parsed.add(executor.submit(new Callable<ParsedFile>() {
+                        @Override
+                        public ParsedFile call() throws Exception {
+                            return parse(path);
+                        }
+                    }));
+                }
+                ParsedFile file;
+                try {
+                    file = parsed.remove().get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof NoSuchFileException) {
+                        gone(paths.get(x));
+                    } else {
+                        LOG.error("Failed to process {}", paths.get(x), e.getCause());
+                    }
+                    continue;
+                }
+                if (file != null) {
+                    scheduleApply(file);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
         }
     }
 
     @Activate
     public void activate(ComponentContext context) {
-        String pathname = (String) context.getProperties().get("configurationDirectory");
+        Dictionary<String, Object> properties = context.getProperties();
+        if (properties.get("snapshotFile") == null) {
+            File dataFile = context.getBundleContext().getDataFile("snapshot.bin");
+            if (dataFile != null) {
+                Hashtable<String, Object> withSnapshot = new Hashtable<>();
+                for (Enumeration<String> keys = properties.keys(); keys.hasMoreElements();) {
+                    String key = keys.nextElement();
+                    withSnapshot.put(key, properties.get(key));
+                }
+                withSnapshot.put("snapshotFile", dataFile.getPath());
+                properties = withSnapshot;
+            }
+        }
+        start(properties);
+        Hashtable<String, Object> serviceProperties = new Hashtable<>();
+        serviceProperties.put("configurationDirectory", configurationDirectory.toString());
+        metricsRegistration = context.getBundleContext().registerService(FlatteningConfigFileManagerMXBean.class,
+                metrics, serviceProperties);
+        queryRegistration = context.getBundleContext().registerService(ConfigurationKeyQuery.class, keyIndex,
+                serviceProperties);
+        registerMBean();
+    }
+
+    void start(Dictionary<String, ?> properties) {
+        String pathname = (String) properties.get("configurationDirectory");
         if (pathname == null) {
             throw new RuntimeException("There is no configurationDirectory parameter in com.basistech.yca.FlatteningConfigFileManager.cfg");
         }
+        inventoryThreads = intProperty(properties, "inventoryThreads", 1);
+        recursive = Boolean.parseBoolean(String.valueOf(properties.get("recursive")));
+        int applyThreads = intProperty(properties, "applyThreads", 0);
+        if (applyThreads > 0) {
+            applyExecutor = new KeyedSerialExecutor(applyThreads, intProperty(properties, "applyQueueLimit", 1000), "yca-apply");
+        }
+        rescanIntervalNanos = TimeUnit.SECONDS.toNanos(intProperty(properties, "rescanIntervalSeconds", 0));
+        fileContents = new FileContents(intProperty(properties, "directThresholdBytes", 4 * 1024 * 1024));
+        sectionThreshold = intProperty(properties, "sectionThresholdBytes", 0);
+        if (sectionThreshold > 0) {
+            sectionedFlattener = new SectionedFlattener(ConfigFormats.readerFor("yaml").getFactory());
+        }
+        persistDigest = Boolean.parseBoolean(String.valueOf(properties.get("persistDigest")));
+        Object snapshotName = properties.get("snapshotFile");
+        snapshotFile = snapshotName == null || snapshotName.toString().trim().isEmpty()
+                ? null : Paths.get(snapshotName.toString().trim());
+        coalescer = new EventCoalescer(TimeUnit.MILLISECONDS.toNanos(intProperty(properties, "quietPeriodMillis", 0)),
+                metrics.stage(ManagerMetrics.Stage.RECEIVE));
 
-        configurationDirectory = Paths.get(pathname);
+        configurationIndex = new ConfigurationIndex(configurationAdmin, FILENAME_PROPERTY_KEY,
+                metrics.stage(ManagerMetrics.Stage.LIST));
         try {
-            watchService = FileSystems.getDefault().newWatchService();
+            configurationIndex.reload();
         } catch (IOException e) {
-            LOG.error("Failed to create watch service", e);
-            throw new RuntimeException("Failed to create watch service");
+            LOG.error("Failed to list existing configurations", e);
+            throw new RuntimeException("Failed to list existing configurations");
         }
-        try {
-            watchKey = configurationDirectory.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
-        } catch (IOException e) {
-            LOG.error("Failed to create watch key for " + configurationDirectory.toAbsolutePath(), e);
-            throw new RuntimeException("Failed to create watch key");
+
+        configurationDirectory = Paths.get(pathname);
+        readSnapshot();
+        seedKeyIndex();
+        String changeSourceName = properties.get("changeSource") == null ? "watch" : properties.get("changeSource").toString();
+        if (givenChangeSource != null) {
+            changeSource = givenChangeSource;
+        } else if ("poll".equals(changeSourceName)) {
+            long interval = TimeUnit.MILLISECONDS.toNanos(intProperty(properties, "pollIntervalMillis", 1000));
+            changeSource = new PollingChangeSource(configurationDirectory, recursive, interval);
+        } else if ("watch".equals(changeSourceName)) {
+            try {
+                changeSource = new WatchServiceChangeSource(configurationDirectory, recursive);
+            } catch (IOException e) {
+                LOG.error("Failed to watch {}", configurationDirectory.toAbsolutePath(), e);
+                throw new RuntimeException("Failed to create watch service");
+            }
+        } else {
+            throw new RuntimeException("Invalid value for changeSource: " + changeSourceName);
         }
 
         watcherThread = new WatcherThread();
@@ -111,146 +378,894 @@ public class FlatteningConfigFileManager {
 
     @Deactivate
     public void deactivate() {
+        if (metricsRegistration != null) {
+            try {
+                metricsRegistration.unregister();
+            } catch (IllegalStateException e) {
+                // already gone with the bundle.
+            }
+            metricsRegistration = null;
+        }
+        if (queryRegistration != null) {
+            try {
+                queryRegistration.unregister();
+            } catch (IllegalStateException e) {
+                // already gone with the bundle.
+            }
+            queryRegistration = null;
+        }
+        unregisterMBean();
         watcherThread.interrupt();
+        try {
+            watcherThread.join(TimeUnit.SECONDS.toMillis(30));
+            if (applyExecutor != null) {
+                applyExecutor.shutdown(30, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writeSnapshot();
+    }
+
+    /*
+     * Trust what the snapshot says about a file only if ConfigurationAdmin still has the
+     * configuration we made for it, unchanged since we applied it. The rest are processed
+     * in full by the initial inventory.
+     */
+    private void readSnapshot() {
+        if (snapshotFile == null) {
+            return;
+        }
+        List<Snapshot.Entry> entries;
+        try {
+            entries = Snapshot.read(snapshotFile, configurationDirectory.toAbsolutePath().toString(), recursive);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Ignoring unreadable snapshot {}", snapshotFile, e);
+            return;
+        }
+        if (entries == null) {
+            LOG.info("No usable snapshot in {}", snapshotFile);
+            return;
+        }
+        // A file can be skipped only if everything made from it checks out; for a bundle,
+        // that is all its configurations, and no others.
+        Map<String, FileFingerprint> files = new HashMap<>();
+        Set<String> rejected = new HashSet<>();
+        Set<String> covered = new HashSet<>();
+        for (Snapshot.Entry entry : entries) {
+            String fileKey = ConfigurationBundle.fileKey(entry.configKey);
+            covered.add(entry.configKey);
+            try {
+                Configuration config = configurationIndex.get(entry.configKey);
+                if (config == null
+                        || !entry.pid.equals(entry.factoryPid == null ? config.getPid() : config.getFactoryPid())
+                        || config.getChangeCount() != entry.changeCount) {
+                    rejected.add(fileKey);
+                    continue;
+                }
+            } catch (IOException | IllegalStateException e) {
+                rejected.add(fileKey);
+                continue;
+            }
+            applied.put(entry.configKey, entry.properties);
+            appliedChangeCounts.put(entry.configKey, entry.changeCount);
+            files.put(fileKey, entry.fingerprint);
+        }
+        for (String configKey : configurationIndex.keys()) {
+            if (!covered.contains(configKey)) {
+                rejected.add(ConfigurationBundle.fileKey(configKey));
+            }
+        }
+        files.keySet().removeAll(rejected);
+        fingerprints.putAll(files);
+        LOG.info("Using snapshot {} for {} files", snapshotFile, files.size());
+    }
+
+    /*
+     * Index what ConfigurationAdmin already has from us, so that queries are complete even for
+     * files that are not applied again; what the snapshot supplied saves copying it out.
+     */
+    private void seedKeyIndex() {
+        for (String configKey : configurationIndex.keys()) {
+            try {
+                Configuration config = configurationIndex.get(configKey);
+                if (config == null) {
+                    continue;
+                }
+                Dictionary<String, ?> props = applied.get(configKey);
+                if (props == null) {
+                    props = config.getProperties();
+                }
+                if (props != null) {
+                    keyIndex.put(config.getPid(), props);
+                }
+            } catch (IOException | IllegalStateException e) {
+                // deleted meanwhile; nothing to index.
+            }
+        }
+    }
+
+    /*
+     * Only files that we know to be applied, with the change count they were applied at, go in.
+     * If we crash, the previous snapshot stays; its entries for configurations changed since
+     * fail the change count check, so the worst case is parsing those files again.
+     */
+    private void writeSnapshot() {
+        if (snapshotFile == null) {
+            return;
+        }
+        List<Snapshot.Entry> entries = new ArrayList<>(appliedChangeCounts.size());
+        for (Map.Entry<String, Long> changeCount : appliedChangeCounts.entrySet()) {
+            String configKey = changeCount.getKey();
+            FileFingerprint fingerprint = fingerprints.get(ConfigurationBundle.fileKey(configKey));
+            Dictionary<String, ?> props = applied.get(configKey);
+            if (fingerprint == null || props == null) {
+                continue;
+            }
+            String[] pid = pidOf(configKey);
+            entries.add(new Snapshot.Entry(configKey, pid[0], pid[1], changeCount.getValue(), fingerprint, props));
+        }
+        try {
+            Snapshot.write(snapshotFile, configurationDirectory.toAbsolutePath().toString(), recursive, entries);
+        } catch (IOException e) {
+            LOG.warn("Failed to write snapshot {}", snapshotFile, e);
+        }
+    }
+
+    /*
+     * Failing to publish metrics is not a reason to stop managing configurations.
+     */
+    void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("com.basistech.yca:type=FlatteningConfigFileManager,directory="
+                    + ObjectName.quote(configurationDirectory.toString()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            metricsName = name;
+        } catch (JMException e) {
+            LOG.warn("Failed to register metrics for {} with JMX", configurationDirectory, e);
+        }
+    }
+
+    void unregisterMBean() {
+        if (metricsName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+        } catch (JMException e) {
+            LOG.warn("Failed to unregister {}", metricsName, e);
+        }
+        metricsName = null;
+    }
+
+    private static int intProperty(Dictionary<String, ?> properties, String name, int defaultValue) {
+        Object value = properties.get(name);
+        if (value == null) {
+            return defaultValue;
+        } else if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        try {
+            return Integer.parseInt(value.toString().trim());
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Invalid value for " + name + ": " + value);
+        }
+    }
+
+    /**
+     * Wait for the initial inventory of the directory to be finished.
+     * @return false if the time ran out first.
+     */
+    boolean awaitInventory(long timeout, TimeUnit unit) throws InterruptedException {
+        return inventoryComplete.await(timeout, unit);
     }
 
     private void watchLoop() {
+        long nextRescan = System.nanoTime() + rescanIntervalNanos;
+        Changes changes = new Changes();
         for (;;) {
 
-            // wait for key to be signaled
-            WatchKey key;
+            // wait for changes, for the next coalesced file to come due,
+            // or for the next periodic rescan.
+            long wait = -1;
+            long now = System.nanoTime();
+            if (!coalescer.isEmpty()) {
+                wait = coalescer.nanosUntilNext(now);
+            }
+            if (rescanIntervalNanos > 0) {
+                long untilRescan = Math.max(0, nextRescan - now);
+                wait = wait == -1 ? untilRescan : Math.min(wait, untilRescan);
+            }
             try {
-                key = watchService.take();
+                if (!changeSource.await(wait, changes)) {
+                    break;
+                }
             } catch (InterruptedException x) {
                 break;
             }
 
-            for (WatchEvent<?> event: key.pollEvents()) {
-                WatchEvent.Kind<?> kind = event.kind();
+            if (changes.overflow) {
+                changes.overflow = false;
+                LOG.warn("File events overflowed for {}; rescanning", configurationDirectory);
+                rescan();
+            } else if (rescanIntervalNanos > 0 && System.nanoTime() - nextRescan >= 0) {
+                rescan();
+                nextRescan = System.nanoTime() + rescanIntervalNanos;
+            }
 
-                if (kind == OVERFLOW) {
-                    continue;
-                }
+            for (Map.Entry<Path, EventCoalescer.Action> due : coalescer.drain(System.nanoTime())) {
+                process(due.getKey(), due.getValue());
+            }
+        }
+        changeSource.close();
+    }
 
-                @SuppressWarnings("unchecked")
-                WatchEvent<Path> ev = (WatchEvent<Path>)event;
-                processEvent(ev);
+    /*
+     * Whatever goes wrong with one file, the watcher has to keep going for the rest.
+     */
+    private void process(Path path, EventCoalescer.Action action) {
+        if (isTemporary(path)) {
+            return;
+        }
+        try {
+            if (action == EventCoalescer.Action.DELETE) {
+                processDelete(path);
+            } else {
+                processAddOrUpdate(path);
             }
+        } catch (RuntimeException e) {
+            LOG.error("Failed to process {}", path, e);
+        }
+    }
 
-            boolean valid = key.reset();
-            if (!valid) {
-                break;
+    private static boolean isTemporary(Path path) {
+        if (TEMP_SUFFIX.equals(ConfigFormats.suffix(path))) {
+            // something, such as ConfigConverter, writing a file to move into place.
+            LOG.debug("Ignoring temporary file {}", path);
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * Feeds what the change source reports into the coalescer.
+     */
+    private class Changes implements ChangeSource.Listener {
+        boolean overflow;
+
+        @Override
+        public void changed(Path file, EventCoalescer.Action action, int repeats) {
+            coalescer.add(file, action, repeats, System.nanoTime());
+        }
+
+        @Override
+        public void directoryRemoved(Path directory) {
+            for (Path path : managedFiles(directory)) {
+                coalescer.add(path, EventCoalescer.Action.DELETE, System.nanoTime());
             }
         }
-        watchKey.cancel();
+
+        @Override
+        public void overflowed() {
+            // we can't tell what was lost, so look at everything.
+            overflow = true;
+        }
+    }
+
+    /**
+     * Bring ConfigurationAdmin back in line with the directory after events may have been
+     * missed. Files are compared with what we last applied by size and modification time
+     * (see {@link FileFingerprint}), so only new and changed files are read, and
+     * configurations whose files are gone are deleted.
+     */
+    void rescan() {
+        rescans.incrementAndGet();
+        Set<String> present = new HashSet<>();
         try {
-            watchService.close();
-        } catch (IOException e) {
-            LOG.error("Error closing watch service", e);
+            for (Path path : changeSource.listFiles()) {
+                present.add(toConfigKey(path));
+                if (ConfigFormats.readerFor(path) != null) {
+                    process(path, EventCoalescer.Action.ADD_OR_UPDATE);
+                }
+            }
+        } catch (IOException ex) {
+            LOG.error("Error listing directory contents for {}", configurationDirectory, ex);
+            return;
+        }
+        for (Path path : managedFiles(configurationDirectory)) {
+            if (!present.contains(toConfigKey(path))) {
+                process(path, EventCoalescer.Action.DELETE);
+            }
+        }
+    }
+
+    /*
+     * The files we manage configurations for at or below this directory (directly in it, unless recursive).
+     */
+    private List<Path> managedFiles(Path directory) {
+        Path parent = directory.toAbsolutePath();
+        Set<Path> files = new LinkedHashSet<>();
+        for (String configKey : configurationIndex.keys()) {
+            Path path = Paths.get(URI.create(ConfigurationBundle.fileKey(configKey)));
+            if (recursive ? path.startsWith(parent) : parent.equals(path.getParent())) {
+                files.add(path);
+            }
         }
+        return new ArrayList<>(files);
     }
 
-    private void processEvent(WatchEvent<Path> ev) {
-        Path filename = ev.context();
+    /**
+     * @return the metrics that are published as an MXBean.
+     */
+    FlatteningConfigFileManagerMXBean getMetrics() {
+        return metrics;
+    }
 
-        if (ev.kind() == ENTRY_DELETE) {
-            processDelete(filename);
-            return;
+    Path getConfigurationDirectory() {
+        return configurationDirectory;
+    }
+
+    int getFilesTracked() {
+        return fingerprints.size();
+    }
+
+    /**
+     * @return the number of keys in each applied configuration, without the bookkeeping keys.
+     */
+    Map<String, Integer> getKeysPerPid() {
+        Map<String, Integer> keys = new TreeMap<>();
+        for (Map.Entry<String, Dictionary<String, ?>> entry : applied.entrySet()) {
+            Dictionary<String, ?> dict = entry.getValue();
+            int count = dict.size();
+            for (String key : BOOKKEEPING_KEYS) {
+                if (dict.get(key) != null) {
+                    count--;
+                }
+            }
+            keys.put(formatPid(pidOf(entry.getKey())), count);
         }
-        processAddOrUpdate(filename);
+        return keys;
+    }
 
+    /**
+     * @return the index that is published as a {@link ConfigurationKeyQuery}.
+     */
+    KeyIndex getKeyIndex() {
+        return keyIndex;
+    }
+
+    /**
+     * Use this change source instead of the one the properties ask for; tests use it to
+     * make changes go missing. Call it before the manager starts.
+     */
+    void setChangeSource(ChangeSource changeSource) {
+        givenChangeSource = changeSource;
+    }
+
+    /**
+     * @return the sectioned flattener for large yaml files; null if sectionThresholdBytes is 0.
+     */
+    SectionedFlattener getSectionedFlattener() {
+        return sectionedFlattener;
+    }
+
+    /**
+     * @return the number of apply-stage tasks queued or running; always 0 without applyThreads.
+     */
+    int getApplyQueueDepth() {
+        return applyExecutor == null ? 0 : applyExecutor.pending();
+    }
+
+    /**
+     * @return the apply-stage queue depth, sampled as work is queued; null without applyThreads.
+     */
+    Histogram getApplyQueueDepthHistogram() {
+        return applyExecutor == null ? null : applyExecutor.queueDepth();
+    }
 
+    /**
+     * @return how long it takes to apply one file's changes to ConfigurationAdmin, in microseconds.
+     */
+    Histogram getApplyLatency() {
+        return metrics.stage(ManagerMetrics.Stage.APPLY);
     }
 
-    private void processAddOrUpdate(Path filename) {
+    /**
+     * @return the number of times the directory has been rescanned.
+     */
+    long getRescans() {
+        return rescans.get();
+    }
+
+    /**
+     * @return the number of files that were actually parsed and flattened.
+     */
+    long getFilesParsed() {
+        return filesParsed.get();
+    }
+
+    /**
+     * @return the number of file events seen by the watcher; 0 before the manager has started.
+     */
+    long getEventsReceived() {
+        EventCoalescer current = coalescer;
+        return current == null ? 0 : current.eventsReceived();
+    }
+
+    /**
+     * @return the number of file events processed after coalescing; 0 before the manager has started.
+     */
+    long getEventsApplied() {
+        EventCoalescer current = coalescer;
+        return current == null ? 0 : current.eventsApplied();
+    }
+
+    // package-private for the end-to-end benchmark.
+    void processAddOrUpdate(Path child) {
         // create and modify look quite similar.
-        Path child = configurationDirectory.resolve(filename);
+        ParsedFile parsed;
+        try {
+            parsed = parse(child);
+        } catch (NoSuchFileException e) {
+            gone(child);
+            return;
+        }
+        if (parsed != null) {
+            scheduleApply(parsed);
+        }
+    }
 
-        // The heck with content type probing, let's do this the simple way.
-        int lastDot = filename.toString().lastIndexOf('.');
-        if (lastDot == -1) {
-            LOG.info("File has no suffix; ignoring: " + child);
+    /*
+     * Under churn a file can be deleted between being listed or reported and being read.
+     * That is a delete like any other; its own event, if one comes, finds nothing left to do.
+     */
+    private void gone(Path child) {
+        LOG.debug("{} was deleted before it could be read", child);
+        processDelete(child);
+    }
+
+    /*
+     * Talking to ConfigurationAdmin is the apply stage. With applyThreads set, it runs
+     * on a pool that keeps the order of the work for each PID, but lets different PIDs
+     * go at the same time; otherwise it runs right here.
+     */
+    private void dispatch(String pid, Runnable work) {
+        if (applyExecutor == null) {
+            work.run();
+            return;
+        }
+        try {
+            applyExecutor.execute(pid, work);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Each configuration is applied under its own PID, so that the pool keeps the order
+     * of changes to it, whichever file they come from.
+     */
+    private void scheduleApply(ParsedFile parsed) {
+        if (parsed.members == null) {
+            String[] pid = parsePid(parsed.path);
+            if (claim(formatPid(pid), parsed.configKey, parsed.path)) {
+                scheduleApply(parsed, parsed.configKey, pid, parsed.dict);
+            } else {
+                fingerprints.remove(parsed.configKey, parsed.fingerprint);
+            }
             return;
         }
+        Set<String> gone = dispatchedMembers.get(parsed.configKey);
+        gone = gone == null ? bundleMembers(parsed.configKey) : new HashSet<>(gone);
+        Set<String> members = new HashSet<>();
+        for (Map.Entry<String, Dictionary<String, Object>> member : parsed.members.entrySet()) {
+            String memberKey = ConfigurationBundle.memberKey(parsed.configKey, member.getKey());
+            String[] pid = splitPid(member.getKey());
+            if (claim(formatPid(pid), memberKey, parsed.path)) {
+                members.add(memberKey);
+                gone.remove(memberKey);
+                scheduleApply(parsed, memberKey, pid, member.getValue());
+            }
+        }
+        dispatchedMembers.put(parsed.configKey, members);
+        for (String memberKey : gone) {
+            scheduleDelete(memberKey);
+        }
+    }
 
-        ObjectMapper mapper;
-        String suffix = filename.toString().substring(lastDot + 1);
-        if ("json".equals(suffix) || "js".equals(suffix)) {
-            mapper = new ObjectMapper();
-        } else if ("yaml".equals(suffix) || "yml".equals(suffix)) {
-            mapper = new ObjectMapper(new YAMLFactory());
-        } else {
-            LOG.error("Unsupported file name " + filename.toString());
+    private void scheduleApply(final ParsedFile parsed, final String configKey, final String[] pid,
+                               final Dictionary<String, Object> dict) {
+        dispatch(formatPid(pid), new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                apply(parsed, configKey, pid, dict);
+                metrics.record(ManagerMetrics.Stage.APPLY, start);
+            }
+        });
+    }
+
+    private void scheduleDelete(final String configKey) {
+        String pid = formatPid(pidOf(configKey));
+        dispatch(pid, new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                delete(configKey);
+                metrics.record(ManagerMetrics.Stage.APPLY, start);
+            }
+        });
+        release(pid, configKey);
+    }
+
+    /*
+     * One configuration can only be made from one place. The first file to name a PID
+     * keeps it until it lets go of it; any other file that names it meanwhile is refused.
+     */
+    private boolean claim(String pid, String configKey, Path path) {
+        String owner = pidOwners.get(pid);
+        if (owner == null) {
+            pidOwners.put(pid, configKey);
+            return true;
+        } else if (owner.equals(configKey)) {
+            return true;
+        }
+        LOG.error("{} names PID {}, which is already made from {}; ignoring it", path, pid, owner);
+        Set<Path> waiting = refused.get(pid);
+        if (waiting == null) {
+            waiting = new LinkedHashSet<>();
+            refused.put(pid, waiting);
+        }
+        waiting.add(path);
+        return false;
+    }
+
+    /*
+     * The configuration for this PID is gone; a file that was refused it can have it now.
+     */
+    private void release(String pid, String configKey) {
+        if (!configKey.equals(pidOwners.get(pid))) {
             return;
         }
+        pidOwners.remove(pid);
+        Set<Path> waiting = refused.remove(pid);
+        if (waiting == null) {
+            return;
+        }
+        for (Path path : waiting) {
+            if (Files.isRegularFile(path)) {
+                LOG.info("Applying {} now that {} no longer makes PID {}", path, configKey, pid);
+                fingerprints.remove(toConfigKey(path));
+                processAddOrUpdate(path);
+            }
+        }
+    }
+
+    /**
+     * A file that has been read and flattened, but not yet applied.
+     */
+    private static final class ParsedFile {
+        final Path path;
+        final String configKey;
+        final FileFingerprint fingerprint;
+        final Dictionary<String, Object> dict;
+        // for a bundle, the configurations by name, and no dict.
+        final Map<String, Dictionary<String, Object>> members;
+
+        ParsedFile(Path path, String configKey, FileFingerprint fingerprint, Dictionary<String, Object> dict,
+                   Map<String, Dictionary<String, Object>> members) {
+            this.path = path;
+            this.configKey = configKey;
+            this.fingerprint = fingerprint;
+            this.dict = dict;
+            this.members = members;
+        }
+    }
 
-        JsonNode content;
+    /**
+     * Read and flatten a file. This only reads shared state, so it is safe to call
+     * from any thread.
+     * @return the flattened contents, or null if the file is to be ignored, cannot be read,
+     * or has not changed since it was last applied.
+     * @throws NoSuchFileException if the file is gone by the time it is read.
+     */
+    private ParsedFile parse(Path child) throws NoSuchFileException {
+        // The heck with content type probing, let's do this the simple way.
+        String suffix = ConfigFormats.suffix(child);
+        if (suffix == null) {
+            LOG.info("File has no suffix; ignoring: {}", child);
+            return null;
+        }
+
+        ObjectReader reader = ConfigFormats.readerFor(suffix);
+        if (reader == null) {
+            LOG.error("Unsupported file name {}", child);
+            return null;
+        }
+
+        String configKey = toConfigKey(child);
         try {
-            content = mapper.readTree(child.toFile());
+            BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                return null;
+            }
+            FileFingerprint previous = fingerprints.get(configKey);
+            if (previous != null && previous.unchanged(attributes)) {
+                return null;
+            }
+            long start = System.nanoTime();
+            FileContents.Content content = fileContents.read(child, attributes.size());
+            FileFingerprint fingerprint = FileFingerprint.of(attributes, content.digest());
+            start = metrics.record(ManagerMetrics.Stage.READ, start);
+            if (previous == null && persistDigest) {
+                previous = persistedFingerprint(configKey);
+            }
+            if (previous != null && previous.sameContent(fingerprint.digest)) {
+                // touched, or rewritten with the same bytes.
+                fingerprints.put(configKey, fingerprint);
+                return null;
+            }
+            if (ConfigurationBundle.isBundle(child)) {
+                Map<String, Dictionary<String, Object>> members;
+                try (JsonParser parser = content.createParser(reader.getFactory())) {
+                    members = ConfigurationBundle.read(parser);
+                }
+                metrics.record(ManagerMetrics.Stage.FLATTEN, start);
+                filesParsed.incrementAndGet();
+                fingerprints.put(configKey, fingerprint);
+                return new ParsedFile(child, configKey, fingerprint, null, members);
+            }
+            Dictionary<String, Object> dict = null;
+            if (sectionedFlattener != null) {
+                if (content.length() >= sectionThreshold && reader.getFactory() instanceof YAMLFactory) {
+                    dict = sectionedFlattener.flatten(configKey, content.toByteArray());
+                } else {
+                    sectionedFlattener.forget(configKey);
+                }
+            }
+            if (dict == null) {
+                try (JsonParser parser = content.createParser(reader.getFactory())) {
+                    @SuppressWarnings("unchecked")
+                    Dictionary<String, Object> flat = (Dictionary<String, Object>) JsonNodeFlattener.flatten(parser);
+                    dict = flat;
+                }
+            }
+            metrics.record(ManagerMetrics.Stage.FLATTEN, start);
+            filesParsed.incrementAndGet();
+            // Compare later events with this version, even if it has not been applied yet.
+            // If applying it fails, it is taken back out.
+            fingerprints.put(configKey, fingerprint);
+            return new ParsedFile(child, configKey, fingerprint, dict, null);
+        } catch (NoSuchFileException e) {
+            throw e;
         } catch (IOException e) {
-            LOG.error("Failed to read contents of " + child, e);
-            return;
+            LOG.error("Failed to read contents of {}", child, e);
+            return null;
         }
+    }
 
-        @SuppressWarnings("unchecked")
-        Dictionary<String, Object> dict = (Dictionary<String, Object>) JsonNodeFlattener.flatten(content);
+    /*
+     * The digest stored with the configuration the last time we applied this file,
+     * possibly in an earlier run.
+     */
+    private FileFingerprint persistedFingerprint(String configKey) {
+        try {
+            Configuration config = configurationIndex.get(configKey);
+            if (config == null) {
+                // a bundle stores the same digest in each of its configurations.
+                for (String memberKey : bundleMembers(configKey)) {
+                    config = configurationIndex.get(memberKey);
+                    break;
+                }
+            }
+            Dictionary<String, Object> props = config == null ? null : config.getProperties();
+            Object digest = props == null ? null : props.get(DIGEST_PROPERTY_KEY);
+            if (digest instanceof String) {
+                return new FileFingerprint(-1, -1, -1, parseHex((String) digest));
+            }
+        } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+            // no usable digest; the file will be parsed.
+        }
+        return null;
+    }
+
+    private static byte[] parseHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd-length digest " + hex);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int x = 0; x < bytes.length; x++) {
+            bytes[x] = (byte) Integer.parseInt(hex.substring(2 * x, 2 * x + 2), 16);
+        }
+        return bytes;
+    }
 
-        String pid[] = parsePid(filename);
+    /*
+     * Apply one configuration from a file; for a bundle, configKey and pid are those of
+     * the configuration, and the rest comes from the bundle.
+     */
+    private void apply(ParsedFile parsed, String configKey, String[] pid, Dictionary<String, Object> dict) {
+        String source = parsed.members == null ? parsed.path.getFileName().toString()
+                : parsed.path.getFileName() + "#" + ConfigurationBundle.memberName(configKey);
         Configuration config;
+        Dictionary<String, Object> props;
+        long start = System.nanoTime();
         try {
-            config = getConfiguration(toConfigKey(filename), pid[0], pid[1]);
-        } catch (IOException e) {
-            LOG.error("Failed to get configuration for " + formatPid(pid));
+            config = getConfiguration(configKey, pid[0], pid[1]);
+            props = config.getProperties();
+            if (props != null && !configKey.equals(props.get(FILENAME_PROPERTY_KEY))) {
+                // Not the configuration we made for this file after all.
+                applied.remove(configKey);
+                configurationIndex.reconcile(configKey);
+                config = getConfiguration(configKey, pid[0], pid[1]);
+                props = config.getProperties();
+            }
+        } catch (IOException | IllegalStateException e) {
+            LOG.error("Failed to get configuration for {}", formatPid(pid), e);
+            fingerprints.remove(parsed.configKey, parsed.fingerprint);
             return;
         }
+        metrics.record(ManagerMetrics.Stage.LOOKUP, start);
 
-        Dictionary<String, Object> props = config.getProperties();
-        Hashtable<String, Object> old = null;
+        // Compare with what we applied last, if we still have it; otherwise with what
+        // ConfigurationAdmin has, which is a copy made for us.
+        Dictionary<String, ?> before = null;
         if (props != null) {
-            old = new Hashtable<>(new DictionaryAsMap<>(props));
+            before = applied.get(configKey);
+            if (before == null) {
+                before = props;
+            }
+        }
+        ConfigurationDelta delta = ConfigurationDelta.between(before, dict, BOOKKEEPING_KEYS);
+        if (before != null && delta.isEmpty()) {
+            applied.put(configKey, CompactDictionary.copyOf(before));
+            recordChangeCount(configKey, config, false);
+            indexKeys(config, dict);
+            return;
         }
-        if (old != null) {
-            old.remove(FILENAME_PROPERTY_KEY);
-            old.remove(Constants.SERVICE_PID);
-            old.remove(ConfigurationAdmin.SERVICE_FACTORYPID);
+
+        dict.put(FILENAME_PROPERTY_KEY, configKey);
+        if (persistDigest) {
+            dict.put(DIGEST_PROPERTY_KEY, parsed.fingerprint.digestHex());
         }
+        if (before == null) {
+            LOG.info("Creating configuration from {}", source);
+        } else {
+            LOG.info("Updating configuration from {}: {} added, {} removed, {} changed", source,
+                    delta.getAdded().size(), delta.getRemoved().size(), delta.getChanged().size());
+        }
+        try {
+            start = System.nanoTime();
+            config.update(dict);
+            metrics.record(ManagerMetrics.Stage.UPDATE, start);
+            metrics.applied();
+        } catch (IOException | IllegalStateException e) {
+            LOG.error("Failed to update configuration for {}", formatPid(pid), e);
+            fingerprints.remove(parsed.configKey, parsed.fingerprint);
+            applied.remove(configKey);
+            appliedChangeCounts.remove(configKey);
+            return;
+        }
+        applied.put(configKey, CompactDictionary.copyOf(dict));
+        recordChangeCount(configKey, config, true);
+        indexKeys(config, dict);
+        notifyDeltaListeners(delta.forConfiguration(config.getPid(), config.getFactoryPid(), configKey));
+    }
 
-        if (!dict.equals(old)) {
-            dict.put(FILENAME_PROPERTY_KEY, toConfigKey(filename));
-            if (old == null) {
-                LOG.info("Creating configuration from " + filename);
+    /*
+     * After an update, the configuration's change count is the one that matches what we applied.
+     * When nothing needed to change, the current count is only taken if we have none, since
+     * someone else may have changed the configuration to look like the file.
+     */
+    private void recordChangeCount(String configKey, Configuration config, boolean updated) {
+        try {
+            if (updated) {
+                appliedChangeCounts.put(configKey, config.getChangeCount());
             } else {
-                LOG.info("Updating configuration from " + filename);
+                appliedChangeCounts.putIfAbsent(configKey, config.getChangeCount());
             }
+        } catch (IllegalStateException e) {
+            appliedChangeCounts.remove(configKey);
+        }
+    }
+
+    private void indexKeys(Configuration config, Dictionary<String, ?> dict) {
+        try {
+            keyIndex.put(config.getPid(), dict);
+        } catch (IllegalStateException e) {
+            // deleted meanwhile; the delete takes it out of the index.
+        }
+    }
+
+    private void notifyDeltaListeners(ConfigurationDelta delta) {
+        for (ConfigurationDeltaListener listener : deltaListeners) {
             try {
-                config.update(dict);
-            } catch (IOException e) {
-                LOG.error("Failed to update configuration for " + formatPid(pid));
+                listener.configurationChanged(delta);
+            } catch (RuntimeException e) {
+                LOG.error("Configuration delta listener failed for {}", delta, e);
+            }
+        }
+    }
+
+    private void processDelete(Path child) {
+        String configKey = toConfigKey(child);
+        if (sectionedFlattener != null) {
+            sectionedFlattener.forget(configKey);
+        }
+        boolean tracked = fingerprints.remove(configKey) != null;
+        if (ConfigurationBundle.isBundle(child)) {
+            Set<String> members = dispatchedMembers.remove(configKey);
+            for (String memberKey : members == null ? bundleMembers(configKey) : members) {
+                scheduleDelete(memberKey);
             }
+        } else if (tracked || configurationIndex.contains(configKey)) {
+            scheduleDelete(configKey);
+        } else if (ConfigFormats.suffix(child) != null) {
+            // a file we ignored, or never managed to apply.
+            release(formatPid(parsePid(child)), configKey);
         }
     }
 
-    private void processDelete(Path filename) {
-        String[] pid = parsePid(filename);
-        LOG.info("Delete event for " + formatPid(pid));
+    /*
+     * The config keys of the configurations we have made from this bundle.
+     */
+    private Set<String> bundleMembers(String fileKey) {
+        return configurationIndex.keysWithPrefix(ConfigurationBundle.memberKey(fileKey, ""));
+    }
+
+    private void delete(String configKey) {
         Configuration conf;
+        long start = System.nanoTime();
         try {
-            conf = getConfiguration(toConfigKey(filename), pid[0], pid[1]);
+            conf = findExistingConfiguration(configKey);
         } catch (IOException e) {
-            LOG.error("Failed to obtain configuration for " + formatPid(pid), e);
+            LOG.error("Failed to obtain configuration for {}", configKey, e);
+            return;
+        }
+        metrics.record(ManagerMetrics.Stage.LOOKUP, start);
+        if (conf == null) {
+            // a file we ignored, or never managed to apply.
             return;
         }
+        String[] pid = pidOf(configKey);
+        LOG.info("Delete event for {}", formatPid(pid));
+        Dictionary<String, ?> before = applied.remove(configKey);
+        appliedChangeCounts.remove(configKey);
+        ConfigurationDelta delta = null;
         try {
+            if (!deltaListeners.isEmpty()) {
+                delta = ConfigurationDelta.between(before == null ? conf.getProperties() : before, null, BOOKKEEPING_KEYS)
+                        .forConfiguration(conf.getPid(), conf.getFactoryPid(), configKey);
+            }
+            keyIndex.remove(conf.getPid());
+            start = System.nanoTime();
             conf.delete();
-        } catch (IOException e) {
-            LOG.error("Failed to delete configuration for " + formatPid(pid), e);
+            metrics.record(ManagerMetrics.Stage.DELETE, start);
+            metrics.applied();
+        } catch (IOException | IllegalStateException e) {
+            LOG.error("Failed to delete configuration for {}", formatPid(pid), e);
+            delta = null;
+        }
+        configurationIndex.remove(configKey);
+        if (delta != null) {
+            notifyDeltaListeners(delta);
         }
-
     }
 
     private String[] parsePid(Path path) {
         String filename = path.getName(path.getNameCount() - 1).toString();
-        String pid = filename.substring(0, filename.lastIndexOf('.'));
+        return splitPid(filename.substring(0, filename.lastIndexOf('.')));
+    }
+
+    /*
+     * The PID, and factory PID or null, from a config key, which may be for a configuration in a bundle.
+     */
+    private String[] pidOf(String configKey) {
+        String name = ConfigurationBundle.memberName(configKey);
+        return name == null ? parsePid(Paths.get(URI.create(configKey))) : splitPid(name);
+    }
+
+    private String[] splitPid(String pid) {
         int n = pid.indexOf('-');
         if (n > 0) {
             String factoryPid = pid.substring(n + 1);
@@ -291,30 +1306,13 @@ public class FlatteningConfigFileManager {
             } else {
                 newConfiguration = configurationAdmin.getConfiguration(pid, null);
             }
+            configurationIndex.put(fileName, newConfiguration);
             return newConfiguration;
         }
     }
 
     Configuration findExistingConfiguration(String fileName) throws IOException {
-        String filter = "(" + FILENAME_PROPERTY_KEY + "=" + escapeFilterValue(fileName) + ")";
-        Configuration[] configurations;
-        try {
-            configurations = configurationAdmin.listConfigurations(filter);
-        } catch (InvalidSyntaxException e) {
-            throw new RuntimeException(e);
-        }
-        if (configurations != null && configurations.length > 0) {
-            return configurations[0];
-        } else {
-            return null;
-        }
-    }
-
-    private String escapeFilterValue(String s) {
-        return s.replaceAll("[(]", "\\\\(").
-                replaceAll("[)]", "\\\\)").
-                replaceAll("[=]", "\\\\=").
-                replaceAll("[\\*]", "\\\\*");
+        return configurationIndex.get(fileName);
     }
 
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
@@ -322,4 +1320,13 @@ public class FlatteningConfigFileManager {
         this.configurationAdmin = configurationAdmin;
     }
 
+    @Reference(cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC, unbind = "removeDeltaListener")
+    public void addDeltaListener(ConfigurationDeltaListener listener) {
+        deltaListeners.add(listener);
+    }
+
+    public void removeDeltaListener(ConfigurationDeltaListener listener) {
+        deltaListeners.remove(listener);
+    }
+
 }
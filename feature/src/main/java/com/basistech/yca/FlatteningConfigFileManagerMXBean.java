@@ -0,0 +1,82 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import java.util.Map;
+
+/**
+ * Counters, latencies and gauges for a {@link FlatteningConfigFileManager}. The manager
+ * registers this as an OSGi service, and with the platform MBean server under
+ * {@code com.basistech.yca:type=FlatteningConfigFileManager,directory=...}.
+ * Latencies are in microseconds.
+ */
+public interface FlatteningConfigFileManagerMXBean {
+
+    String getConfigurationDirectory();
+
+    /**
+     * @return the number of file events reported by the change source.
+     */
+    long getEventsReceived();
+
+    /**
+     * @return the number of file events processed after coalescing.
+     */
+    long getEventsApplied();
+
+    long getRescans();
+
+    /**
+     * @return the number of files that were actually parsed and flattened.
+     */
+    long getFilesParsed();
+
+    /**
+     * @return the number of files whose contents the manager is tracking.
+     */
+    int getFilesTracked();
+
+    /**
+     * @return the number of changes waiting to be applied; always 0 without applyThreads.
+     */
+    int getApplyQueueDepth();
+
+    /**
+     * @return when a configuration was last updated or deleted, in milliseconds since
+     * the epoch, or 0 if none has been.
+     */
+    long getLastApplyTime();
+
+    /**
+     * @return the number of keys in each configuration the manager has applied, by PID
+     * ({@code pid-factoryPid} for factory configurations), not counting the manager's own
+     * bookkeeping properties.
+     */
+    Map<String, Integer> getKeysPerPid();
+
+    /**
+     * @return latency statistics for each stage of processing, by name:
+     * {@code receive} (from a file's first event until it is processed, including the
+     * quiet period), {@code read} (reading and digesting the file), {@code flatten}
+     * (parsing and flattening, which are a single pass), {@code lookup} (finding the
+     * file's configuration), {@code list} (the {@code listConfigurations} call that
+     * loads the index), {@code update} and {@code delete} (the ConfigurationAdmin
+     * calls), and {@code apply} (all of the ConfigurationAdmin work for one file).
+     */
+    Map<String, StageStatistics> getStages();
+}
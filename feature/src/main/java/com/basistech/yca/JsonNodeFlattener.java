@@ -16,21 +16,32 @@
 
 package com.basistech.yca;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ContainerNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.cbor.CBORParser;
 
 import java.io.IOException;
-import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Dictionary;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Convert between {@link JsonNode} and {@code Dictionary<String, Object>}.
@@ -39,202 +50,471 @@ public final class JsonNodeFlattener {
 
     public static final Object NULL = new Object();
 
+    /**
+     * The order in which {@link #unflatten(Dictionary)} visits keys: plain string order,
+     * except that array indices compare numerically, so that {@code a[2]} comes before
+     * {@code a[10]}. All the keys below any one node are contiguous in this order.
+     */
+    static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            int n = Math.min(a.length(), b.length());
+            boolean inIndex = false;
+            for (int x = 0; x < n; x++) {
+                char ca = a.charAt(x);
+                char cb = b.charAt(x);
+                if (ca != cb) {
+                    if (inIndex) {
+                        // the longer run of digits is the bigger index.
+                        int diff = digitsEnd(a, x) - digitsEnd(b, x);
+                        if (diff != 0) {
+                            return diff;
+                        }
+                    }
+                    return ca - cb;
+                }
+                if (ca == '[') {
+                    inIndex = true;
+                } else if (ca == ']') {
+                    inIndex = false;
+                }
+            }
+            return a.length() - b.length();
+        }
+    };
+
     private JsonNodeFlattener() {
         //
     }
 
     public static Dictionary<String, ?> flatten(JsonNode node) {
+        return flatten(node, false);
+    }
+
+    /**
+     * Flatten a tree.
+     * @param internKeys if true, the keys are {@link String#intern()}ed, so that repeated
+     *                   flattening of the same (or similar) files shares one copy of each key.
+     */
+    public static Dictionary<String, ?> flatten(JsonNode node, boolean internKeys) {
         Dictionary<String, Object> map = new Hashtable<>();
         /* We need a depth-first traversal of the node */
         try {
-            traverse(node, "", map);
+            traverse(node, new StringBuilder(), map, internKeys);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
         return map;
     }
 
-    private static void traverse(JsonNode node, String pathSoFar, Dictionary<String, Object> map) throws IOException {
-        if (!node.isContainerNode()) {
-            Object value;
-            if (node.isBigDecimal()) {
-                value = node.decimalValue();
-            } else if (node.isBigInteger()) {
-                value = node.bigIntegerValue();
-            } else if (node.isBinary()) {
-                value = node.binaryValue();
-            } else if (node.isBoolean()) {
-                value = node.booleanValue();
-            } else if (node.isDouble()) {
-                value = node.doubleValue();
-            } else if (node.isFloat()) {
-                value = node.floatValue();
-            } else if (node.isInt()) {
-                value = node.intValue();
-            } else if (node.isLong()) {
-                value = node.longValue();
-            } else if (node.isNull()) {
-                // NOTE: stupid old Hashtable can't store null values.
-                value = NULL;
-            } else if (node.isShort()) {
-                value = node.shortValue();
-            } else if (node.isTextual()) {
-                value = node.textValue();
-            } else {
-                throw new RuntimeException("Unanticipated node " + node);
+    /**
+     * Flatten the value at the parser's current token (or its first token, if it has not
+     * been advanced yet) straight from the token stream, without building a tree.
+     * The result is the same as {@link #flatten(JsonNode)} on the tree that
+     * {@code readTree} would have built from the same input. The parser is left on the
+     * last token of the value.
+     */
+    public static Dictionary<String, ?> flatten(JsonParser parser) throws IOException {
+        return flatten(parser, false);
+    }
+
+    /**
+     * Flatten from a parser, as {@link #flatten(JsonParser)}.
+     * @param internKeys if true, the keys are {@link String#intern()}ed.
+     */
+    public static Dictionary<String, ?> flatten(JsonParser parser, boolean internKeys) throws IOException {
+        Dictionary<String, Object> map = new Hashtable<>();
+        JsonToken token = parser.getCurrentToken();
+        if (token == null) {
+            token = parser.nextToken();
+        }
+        if (token != null) {
+            traverse(parser, token, new StringBuilder(), map, internKeys);
+        }
+        return map;
+    }
+
+    /**
+     * Flatten a file, choosing the format from its suffix (see {@link ConfigFormats}).
+     */
+    public static Dictionary<String, ?> flatten(Path file) throws IOException {
+        ObjectReader reader = ConfigFormats.readerFor(file);
+        if (reader == null) {
+            throw new IllegalArgumentException("Unsupported file name " + file);
+        }
+        try (JsonParser parser = reader.getFactory().createParser(file.toFile())) {
+            return flatten(parser);
+        }
+    }
+
+    /**
+     * Flatten the value at the parser's current token into an existing dictionary, with
+     * {@code prefix} as the path of that value.
+     */
+    static void flatten(JsonParser parser, String prefix, Dictionary<String, Object> map) throws IOException {
+        traverse(parser, parser.getCurrentToken(), new StringBuilder(prefix), map, false);
+    }
+
+    private static void traverse(JsonParser parser, JsonToken token, StringBuilder path, Dictionary<String, Object> map,
+                                 boolean internKeys) throws IOException {
+        int length = path.length();
+        if (token == JsonToken.START_OBJECT) {
+            // made on the second field, so that the many small objects do without.
+            Set<String> names = null;
+            String first = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                if (length > 0) {
+                    path.append('.');
+                }
+                path.append(name);
+                if (first == null) {
+                    first = name;
+                } else {
+                    if (names == null) {
+                        names = new HashSet<>();
+                        names.add(first);
+                    }
+                    if (!names.add(name)) {
+                        // a repeated key; as in readTree, the last value wins.
+                        removeSubtree(map, path.toString());
+                    }
+                }
+                traverse(parser, parser.nextToken(), path, map, internKeys);
+                path.setLength(length);
+            }
+        } else if (token == JsonToken.START_ARRAY) {
+            int nodeIndex = 0;
+            JsonToken next;
+            while ((next = parser.nextToken()) != JsonToken.END_ARRAY) {
+                path.append('[').append(nodeIndex++).append(']');
+                traverse(parser, next, path, map, internKeys);
+                path.setLength(length);
+            }
+        } else {
+            map.put(key(path, internKeys), scalarValue(parser, token));
+        }
+    }
+
+    /*
+     * Remove the key and the keys under it. This walks the whole map, but only happens
+     * when a file repeats a key.
+     */
+    private static void removeSubtree(Dictionary<String, Object> map, String key) {
+        List<String> doomed = new ArrayList<>();
+        for (Enumeration<String> keys = map.keys(); keys.hasMoreElements();) {
+            String candidate = keys.nextElement();
+            if (candidate.startsWith(key) && (candidate.length() == key.length()
+                    || candidate.charAt(key.length()) == '.' || candidate.charAt(key.length()) == '[')) {
+                doomed.add(candidate);
             }
-            map.put(pathSoFar, value);
+        }
+        for (String candidate : doomed) {
+            map.remove(candidate);
+        }
+    }
+
+    // The mapping here has to agree with the node types that readTree builds and
+    // with the tree traversal below, or the two flatten methods would disagree.
+    private static Object scalarValue(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+        case VALUE_STRING:
+            return parser.getText();
+        case VALUE_NUMBER_INT:
+            switch (parser.getNumberType()) {
+            case INT:
+                return parser.getIntValue();
+            case LONG:
+                return parser.getLongValue();
+            default:
+                return parser.getBigIntegerValue();
+            }
+        case VALUE_NUMBER_FLOAT:
+            switch (parser.getNumberType()) {
+            case BIG_DECIMAL:
+                return parser.getDecimalValue();
+            case FLOAT:
+                return parser.getFloatValue();
+            default:
+                return parser.getDoubleValue();
+            }
+        case VALUE_TRUE:
+            return Boolean.TRUE;
+        case VALUE_FALSE:
+            return Boolean.FALSE;
+        case VALUE_NULL:
+            return NULL;
+        case VALUE_EMBEDDED_OBJECT:
+            BigInteger bignum = cborBignum(parser);
+            if (bignum != null) {
+                return bignum;
+            }
+            Object embedded = parser.getEmbeddedObject();
+            if (embedded instanceof byte[]) {
+                return embedded;
+            }
+            throw new RuntimeException("Unanticipated embedded object " + embedded);
+        default:
+            throw new RuntimeException("Unanticipated token " + token);
+        }
+    }
+
+    /**
+     * CBOR writes a BigInteger as a byte string tagged 2 (positive) or 3 (negative), and
+     * the CBOR parser hands it back as binary rather than as a number. Jackson writes the
+     * magnitude of a negative one, not the -1 - n of RFC 7049, so that is what is read.
+     * @return the number at the parser's current token, or null if it is not such a byte string.
+     */
+    static BigInteger cborBignum(JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.VALUE_EMBEDDED_OBJECT || !(parser instanceof CBORParser)) {
+            return null;
+        }
+        int tag = ((CBORParser) parser).getCurrentTag();
+        if (tag != 2 && tag != 3) {
+            return null;
+        }
+        BigInteger magnitude = new BigInteger(1, parser.getBinaryValue());
+        return tag == 2 ? magnitude : magnitude.negate();
+    }
+
+    /*
+     * The path is a single buffer shared by the whole traversal: each level appends its
+     * segment, recurses, and truncates back. Only the leaves turn it into a String.
+     */
+    private static void traverse(JsonNode node, StringBuilder path, Dictionary<String, Object> map, boolean internKeys) throws IOException {
+        if (!node.isContainerNode()) {
+            map.put(key(path, internKeys), scalarValue(node));
         } else {
             if (node.isArray()) {
-                traverseArray(node, pathSoFar, map);
+                traverseArray(node, path, map, internKeys);
             } else {
-                traverseObject(node, pathSoFar, map);
+                traverseObject(node, path, map, internKeys);
             }
         }
     }
 
-    private static void traverseObject(JsonNode node, String pathSoFar, Dictionary<String, Object> map) throws IOException {
-        String separator = "";
-        if (pathSoFar.length() > 0) {
-            separator = ".";
+    /**
+     * @return the dictionary value for a node that is not a container.
+     */
+    static Object scalarValue(JsonNode node) throws IOException {
+        if (node.isBigDecimal()) {
+            return node.decimalValue();
+        } else if (node.isBigInteger()) {
+            return node.bigIntegerValue();
+        } else if (node.isBinary()) {
+            return node.binaryValue();
+        } else if (node.isBoolean()) {
+            return node.booleanValue();
+        } else if (node.isDouble()) {
+            return node.doubleValue();
+        } else if (node.isFloat()) {
+            return node.floatValue();
+        } else if (node.isInt()) {
+            return node.intValue();
+        } else if (node.isLong()) {
+            return node.longValue();
+        } else if (node.isNull()) {
+            // NOTE: stupid old Hashtable can't store null values.
+            return NULL;
+        } else if (node.isShort()) {
+            return node.shortValue();
+        } else if (node.isTextual()) {
+            return node.textValue();
+        } else {
+            throw new RuntimeException("Unanticipated node " + node);
         }
+    }
+
+    private static void traverseObject(JsonNode node, StringBuilder path, Dictionary<String, Object> map, boolean internKeys) throws IOException {
+        int length = path.length();
         Iterator<Map.Entry<String, JsonNode>> fieldIt = node.fields();
         while (fieldIt.hasNext()) {
             Map.Entry<String, JsonNode> entry = fieldIt.next();
-            traverse(entry.getValue(), pathSoFar + separator + entry.getKey(), map);
+            if (length > 0) {
+                path.append('.');
+            }
+            path.append(entry.getKey());
+            traverse(entry.getValue(), path, map, internKeys);
+            path.setLength(length);
         }
     }
 
-    private static void traverseArray(JsonNode node, String pathSoFar, Dictionary<String, Object> map) throws IOException {
+    private static void traverseArray(JsonNode node, StringBuilder path, Dictionary<String, Object> map, boolean internKeys) throws IOException {
+        int length = path.length();
         for (int nodeIndex = 0; nodeIndex < node.size(); nodeIndex++) {
-            String path = pathSoFar + "[" + nodeIndex + "]";
-            traverse(node.get(nodeIndex), path, map);
+            path.append('[').append(nodeIndex).append(']');
+            traverse(node.get(nodeIndex), path, map, internKeys);
+            path.setLength(length);
         }
     }
 
+    static String key(StringBuilder path, boolean internKeys) {
+        String key = path.toString();
+        return internKeys ? key.intern() : key;
+    }
+
+    private static int digitsEnd(String s, int start) {
+        int end = start;
+        while (end < s.length() && Character.isDigit(s.charAt(end))) {
+            end++;
+        }
+        return end;
+    }
 
     public static JsonNode unflatten(Dictionary<String, ?> config) {
+        ObjectNode root = JsonNodeFactory.instance.objectNode();
+        TreeBuilder builder = new TreeBuilder(root);
+        if (config instanceof CompactDictionary) {
+            // already in order.
+            for (Map.Entry<String, Object> entry : ((CompactDictionary) config).asMap().entrySet()) {
+                builder.add(entry.getKey(), entry.getValue());
+            }
+            return root;
+        }
         Enumeration<String> keyEnum = config.keys();
         List<String> keys = new ArrayList<>();
         while (keyEnum.hasMoreElements()) {
             keys.add(keyEnum.nextElement());
         }
-        Collections.sort(keys);
-        ObjectMapper mapper = new ObjectMapper();
-        ObjectNode root = mapper.createObjectNode();
+        Collections.sort(keys, KEY_ORDER);
         for (String key : keys) {
-            Object value = config.get(key);
-            addNode(root, key, value);
+            builder.add(key, config.get(key));
         }
-
         return root;
     }
 
-    // this could be optimized by taking advantage of the sorted order.
-    private static void addNode(ObjectNode root, String key, Object value) {
-        int keyIndex = 0;
-        int nodeIndex = 0; // used to add to arrays.
-        JsonNode node = root;
-        /*
-         * If node is an object, then we can either find a fieldName (terminated by . or [) or be at the end.
-         * If node is an array, we either find . or [ or be at the end.
-         */
-        while (true) {
-            int dotIndex = key.indexOf('.', keyIndex);
-            int arIndex = key.indexOf('[', keyIndex);
-            if (dotIndex == -1) {
-                dotIndex = Integer.MAX_VALUE;
-            }
-            if (arIndex == -1) {
-                arIndex = Integer.MAX_VALUE;
-            }
-            boolean noDelim = dotIndex == Integer.MAX_VALUE && arIndex == Integer.MAX_VALUE;
-            int nextDelim = Math.min(arIndex, dotIndex);
-            if ((node instanceof ArrayNode) && !(noDelim || nextDelim == keyIndex)) {
-                throw new RuntimeException("] not followed by '[', '.', or the end of the key");
-            }
-            if (node instanceof ObjectNode) {
-                String fieldName;
-                if (noDelim) {
-                    fieldName = key.substring(keyIndex);
-                    setValue((ObjectNode) node, fieldName, value);
-                    return;
-                }
-                fieldName = key.substring(keyIndex, nextDelim);
-                // we are inserting -- something --
-                if (key.charAt(nextDelim) == '.') {
-                    JsonNode nextNode = node.get(fieldName);
+    /**
+     * Builds a tree from keys presented in {@link #KEY_ORDER}. It keeps the chain of
+     * containers that the previous key went through; a new key only has to
+     * walk from the deepest container on that chain that it shares with the previous key,
+     * rather than from the root. Because the order puts array indices in numeric order,
+     * a new array element is always appended.
+     */
+    static final class TreeBuilder {
+        // nodes[d] is a container on the current chain; ends[d] is the offset in the key
+        // just past its path, that is, of the '.' or '[' that leads into its children.
+        private ContainerNode<?>[] nodes = new ContainerNode<?>[8];
+        private int[] ends = new int[8];
+        private int depth;
+        private String previous = "";
+
+        TreeBuilder(ObjectNode root) {
+            nodes[0] = root;
+            depth = 1;
+        }
+
+        void add(String key, Object value) {
+            int common = commonPrefix(previous, key);
+            while (depth > 1 && ends[depth - 1] >= common) {
+                depth--;
+            }
+            previous = key;
+            ContainerNode<?> node = nodes[depth - 1];
+            int keyIndex = ends[depth - 1];
+
+            while (true) {
+                if (node instanceof ObjectNode) {
+                    ObjectNode object = (ObjectNode) node;
+                    int fieldStart = depth == 1 ? keyIndex : keyIndex + 1;
+                    int nextDelim = nextDelimiter(key, fieldStart);
+                    if (nextDelim == -1) {
+                        object.set(key.substring(fieldStart), valueNode(object, key, value));
+                        return;
+                    }
+                    String fieldName = key.substring(fieldStart, nextDelim);
+                    JsonNode nextNode = object.get(fieldName);
                     if (nextNode == null) {
-                        nextNode = ((ObjectNode) node).putObject(fieldName);
+                        if (key.charAt(nextDelim) == '.') {
+                            nextNode = object.putObject(fieldName);
+                        } else {
+                            nextNode = object.putArray(fieldName);
+                        }
                     }
-                    node = nextNode;
-                    keyIndex = nextDelim + 1;
+                    node = push((ContainerNode<?>) nextNode, nextDelim);
+                    keyIndex = nextDelim;
                 } else {
-                    JsonNode nextNode = node.get(fieldName);
-                    if (nextNode == null) {
-                        nextNode = ((ObjectNode) node).putArray(fieldName);
+                    ArrayNode array = (ArrayNode) node;
+                    int closeSq = key.indexOf(']', keyIndex + 1);
+                    if (key.charAt(keyIndex) != '[' || closeSq == -1 || digitsEnd(key, keyIndex + 1) != closeSq) {
+                        throw new RuntimeException("Invalid array index in " + key);
                     }
-                    node = nextNode;
-                    /* parse the rest of the array reference */
-                    int closeSq = key.indexOf(']', nextDelim + 1);
-                    nodeIndex = Integer.parseInt(key.substring(nextDelim + 1, closeSq));
                     keyIndex = closeSq + 1;
-                }
-            } else {
-                // last thing we did was make an array node. so we're at the end, ., or another array.
-                if (noDelim) {
-                    setValue((ArrayNode) node, nodeIndex, value);
-                    return;
-                }
-                if (key.charAt(nextDelim) == '.') {
-                    JsonNode nextNode = node.get(nodeIndex);
-                    if (nextNode == null) {
-                        nextNode = ((ArrayNode) node).insertObject(nodeIndex);
+                    if (keyIndex == key.length()) {
+                        array.add(valueNode(array, key, value));
+                        return;
                     }
-                    node = nextNode;
-                    keyIndex = nextDelim + 1;
-                } else {
-                    // ][...]
-                    JsonNode nextNode = node.get(nodeIndex);
-                    if (nextNode == null) {
-                        nextNode = ((ArrayNode) node).insertArray(nodeIndex);
+                    char delim = key.charAt(keyIndex);
+                    if (delim == '.') {
+                        node = push(array.addObject(), keyIndex);
+                    } else if (delim == '[') {
+                        node = push(array.addArray(), keyIndex);
+                    } else {
+                        throw new RuntimeException("] not followed by '[', '.', or the end of the key");
                     }
-                    node = nextNode;
-                    int closeSq = key.indexOf(']', nextDelim + 1);
-                    nodeIndex = Integer.parseInt(key.substring(nextDelim + 1, closeSq));
-                    keyIndex = closeSq + 1;
                 }
             }
         }
-    }
 
-    // these two need identical tests of the type of value, but they need to use them to make
-    // different calls to the node. So we seem to need to duplicate the code.
-    private static void setValue(ObjectNode node, String fieldName, Object value) {
-        if (value == NULL) {
-            node.putNull(fieldName);
-            return;
+        private ContainerNode<?> push(ContainerNode<?> node, int end) {
+            if (depth == nodes.length) {
+                nodes = Arrays.copyOf(nodes, depth * 2);
+                ends = Arrays.copyOf(ends, depth * 2);
+            }
+            nodes[depth] = node;
+            ends[depth] = end;
+            depth++;
+            return node;
         }
-        /* the following is slow but compact to write. I'm not in a hurry. */
-        try {
-            Method suitableSetter = ObjectNode.class.getMethod("put", String.class, value.getClass());
-            suitableSetter.invoke(node, fieldName, value);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+
+        private static int commonPrefix(String a, String b) {
+            int n = Math.min(a.length(), b.length());
+            int x = 0;
+            while (x < n && a.charAt(x) == b.charAt(x)) {
+                x++;
+            }
+            return x;
+        }
+
+        private static int nextDelimiter(String key, int from) {
+            for (int x = from; x < key.length(); x++) {
+                char c = key.charAt(x);
+                if (c == '.' || c == '[') {
+                    return x;
+                }
+            }
+            return -1;
         }
     }
 
-    private static void setValue(ArrayNode node, int index, Object value) {
+    /*
+     * One type switch, shared by objects and arrays. The node comes from the parent's own
+     * factory, which is what ObjectNode.put and ArrayNode.insert would have used.
+     */
+    private static JsonNode valueNode(ContainerNode<?> parent, String key, Object value) {
         if (value == NULL) {
-            node.insertNull(index);
-            return;
-        }
-        try {
-        /* the following is slow but compact to write. I'm not in a hurry. */
-            Method suitableSetter = ArrayNode.class.getMethod("insert", int.class, value.getClass());
-            suitableSetter.invoke(node, index, value);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            return parent.nullNode();
+        } else if (value instanceof String) {
+            return parent.textNode((String) value);
+        } else if (value instanceof Integer) {
+            return parent.numberNode(((Integer) value).intValue());
+        } else if (value instanceof Long) {
+            return parent.numberNode(((Long) value).longValue());
+        } else if (value instanceof Double) {
+            return parent.numberNode(((Double) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            return parent.booleanNode(((Boolean) value).booleanValue());
+        } else if (value instanceof Float) {
+            return parent.numberNode(((Float) value).floatValue());
+        } else if (value instanceof Short) {
+            return parent.numberNode(((Short) value).shortValue());
+        } else if (value instanceof BigDecimal) {
+            return parent.numberNode((BigDecimal) value);
+        } else if (value instanceof BigInteger) {
+            return parent.numberNode((BigInteger) value);
+        } else if (value instanceof byte[]) {
+            return parent.binaryNode((byte[]) value);
+        } else {
+            throw new RuntimeException("Unsupported value " + value.getClass().getName() + " for " + key);
         }
     }
 }
@@ -0,0 +1,220 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The {@link ConfigurationKeyQuery} behind the manager: a sorted map from key to the PIDs that
+ * have it, for lookups and prefix and range scans, and the keys of each PID, so that an
+ * update only touches the keys that were added or removed. Queries take a read lock, so
+ * they go on at the same time; updates take the write lock for as long as their own keys take.
+ */
+final class KeyIndex implements ConfigurationKeyQuery {
+    private final Set<String> ignoredKeys;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // guarded by lock.
+    private final TreeMap<String, Set<String>> pidsByKey = new TreeMap<>(JsonNodeFlattener.KEY_ORDER);
+    private final Map<String, Set<String>> keysByPid = new HashMap<>();
+
+    /**
+     * @param ignoredKeys keys that are never indexed.
+     */
+    KeyIndex(Set<String> ignoredKeys) {
+        this.ignoredKeys = ignoredKeys;
+    }
+
+    /**
+     * Make the index's keys for this PID those of the dictionary.
+     */
+    void put(String pid, Dictionary<String, ?> properties) {
+        Set<String> keys = new HashSet<>(properties.size());
+        for (Enumeration<String> keyEnum = properties.keys(); keyEnum.hasMoreElements();) {
+            String key = keyEnum.nextElement();
+            if (!ignoredKeys.contains(key)) {
+                keys.add(key);
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            Set<String> previous = keysByPid.put(pid, keys);
+            if (previous != null) {
+                for (String key : previous) {
+                    if (!keys.contains(key)) {
+                        removePid(key, pid);
+                    }
+                }
+            }
+            for (String key : keys) {
+                if (previous == null || !previous.contains(key)) {
+                    Set<String> pids = pidsByKey.get(key);
+                    if (pids == null) {
+                        // most keys belong to one configuration.
+                        pids = new HashSet<>(2);
+                        pidsByKey.put(key, pids);
+                    }
+                    pids.add(pid);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(String pid) {
+        lock.writeLock().lock();
+        try {
+            Set<String> previous = keysByPid.remove(pid);
+            if (previous != null) {
+                for (String key : previous) {
+                    removePid(key, pid);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removePid(String key, String pid) {
+        Set<String> pids = pidsByKey.get(key);
+        if (pids != null) {
+            pids.remove(pid);
+            if (pids.isEmpty()) {
+                pidsByKey.remove(key);
+            }
+        }
+    }
+
+    @Override
+    public Set<String> getPids(String key) {
+        lock.readLock().lock();
+        try {
+            Set<String> pids = pidsByKey.get(key);
+            return pids == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(new TreeSet<>(pids));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public SortedMap<String, Set<String>> getKeysWithPrefix(String prefix) {
+        lock.readLock().lock();
+        try {
+            SortedMap<String, Set<String>> result = new TreeMap<>(JsonNodeFlattener.KEY_ORDER);
+            String stem = stem(prefix);
+            for (Map.Entry<String, Set<String>> entry : pidsByKey.tailMap(prefix, true).entrySet()) {
+                if (!entry.getKey().startsWith(stem)) {
+                    break;
+                }
+                if (!entry.getKey().startsWith(prefix)) {
+                    continue;
+                }
+                result.put(entry.getKey(), Collections.unmodifiableSet(new TreeSet<>(entry.getValue())));
+            }
+            return Collections.unmodifiableSortedMap(result);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public SortedMap<String, Set<String>> getKeys(String fromKey, String toKey) {
+        lock.readLock().lock();
+        try {
+            SortedMap<String, Set<String>> result = new TreeMap<>(JsonNodeFlattener.KEY_ORDER);
+            if (JsonNodeFlattener.KEY_ORDER.compare(fromKey, toKey) < 0) {
+                for (Map.Entry<String, Set<String>> entry : pidsByKey.subMap(fromKey, toKey).entrySet()) {
+                    result.put(entry.getKey(), Collections.unmodifiableSet(new TreeSet<>(entry.getValue())));
+                }
+            }
+            return Collections.unmodifiableSortedMap(result);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<String> getPidsWithPrefix(String prefix) {
+        lock.readLock().lock();
+        try {
+            Set<String> result = new TreeSet<>();
+            String stem = stem(prefix);
+            for (Map.Entry<String, Set<String>> entry : pidsByKey.tailMap(prefix, true).entrySet()) {
+                if (!entry.getKey().startsWith(stem)) {
+                    break;
+                }
+                if (!entry.getKey().startsWith(prefix)) {
+                    continue;
+                }
+                result.addAll(entry.getValue());
+            }
+            return Collections.unmodifiableSet(result);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<String> getKeysOf(String pid) {
+        lock.readLock().lock();
+        try {
+            Set<String> keys = keysByPid.get(pid);
+            if (keys == null) {
+                return Collections.emptySet();
+            }
+            Set<String> result = new TreeSet<>(JsonNodeFlattener.KEY_ORDER);
+            result.addAll(keys);
+            return Collections.unmodifiableSet(result);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of distinct keys.
+     */
+    int keyCount() {
+        lock.readLock().lock();
+        try {
+            return pidsByKey.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * The keys that start with a prefix come right after it in key order, one after another,
+     * unless the prefix stops inside an index: a[2] comes between a[1] and a[10]. The keys
+     * that start with what comes before that index always do.
+     */
+    private static String stem(String prefix) {
+        int open = prefix.lastIndexOf('[');
+        return open > prefix.lastIndexOf(']') ? prefix.substring(0, open + 1) : prefix;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.yca;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks on a thread pool so that tasks with the same key run one at a time,
+ * in submission order, while tasks with different keys run concurrently.
+ * The number of tasks waiting or running is bounded; when it is reached,
+ * {@link #execute} blocks, which pushes back on whoever is producing the work.
+ */
+final class KeyedSerialExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(KeyedSerialExecutor.class);
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    // guarded by itself. A key is present while it has a drainer scheduled or running.
+    private final Map<String, Deque<Runnable>> queues = new HashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Histogram queueDepth = new Histogram();
+
+    KeyedSerialExecutor(int threads, int maxPending, final String threadName) {
+        permits = new Semaphore(maxPending);
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    void execute(String key, Runnable task) throws InterruptedException {
+        permits.acquire();
+        queueDepth.record(pending.incrementAndGet());
+        boolean schedule = false;
+        synchronized (queues) {
+            Deque<Runnable> queue = queues.get(key);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                queues.put(key, queue);
+                schedule = true;
+            }
+            queue.add(task);
+        }
+        if (schedule) {
+            executor.execute(new Drainer(key));
+        }
+    }
+
+    /*
+     * Runs one task for its key, then goes to the back of the pool's queue if there are
+     * more, so that one busy key does not starve the others.
+     */
+    private final class Drainer implements Runnable {
+        private final String key;
+
+        Drainer(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            synchronized (queues) {
+                task = queues.get(key).poll();
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOG.error("Failed to process {}", key, e);
+            } finally {
+                boolean more;
+                synchronized (queues) {
+                    more = !queues.get(key).isEmpty();
+                    if (!more) {
+                        queues.remove(key);
+                    }
+                }
+                if (pending.decrementAndGet() == 0) {
+                    synchronized (pending) {
+                        pending.notifyAll();
+                    }
+                }
+                permits.release();
+                if (more) {
+                    executor.execute(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until nothing is queued or running.
+     */
+    void awaitIdle() throws InterruptedException {
+        synchronized (pending) {
+            while (pending.get() > 0) {
+                pending.wait();
+            }
+        }
+    }
+
+    /**
+     * Wait until nothing is queued or running.
+     * @return false if the time ran out first.
+     */
+    boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (pending) {
+            while (pending.get() > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(pending, remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Let the queued work finish, up to the timeout, and stop the threads.
+     */
+    void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        awaitIdle(timeout, unit);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the number of tasks queued or running right now.
+     */
+    int pending() {
+        return pending.get();
+    }
+
+    /**
+     * @return the number of tasks queued or running, sampled as each task is submitted.
+     */
+    Histogram queueDepth() {
+        return queueDepth;
+    }
+}
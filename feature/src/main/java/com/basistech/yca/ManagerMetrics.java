@@ -0,0 +1,131 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The manager's metrics. Recording is a few atomic operations on a {@link Histogram} or
+ * a counter, so it stays on all the time; the snapshots for JMX are built only when asked.
+ */
+final class ManagerMetrics implements FlatteningConfigFileManagerMXBean {
+
+    /**
+     * The stages that are timed; see {@link #getStages()}.
+     */
+    enum Stage {
+        RECEIVE,
+        READ,
+        FLATTEN,
+        LOOKUP,
+        LIST,
+        UPDATE,
+        DELETE,
+        APPLY
+    }
+
+    private final FlatteningConfigFileManager manager;
+    private final Histogram[] stages = new Histogram[Stage.values().length];
+    private final AtomicLong lastApplyTime = new AtomicLong();
+
+    ManagerMetrics(FlatteningConfigFileManager manager) {
+        this.manager = manager;
+        for (int x = 0; x < stages.length; x++) {
+            stages[x] = new Histogram();
+        }
+    }
+
+    Histogram stage(Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    /**
+     * Record the time since {@code startNanos} for a stage.
+     * @return the current {@link System#nanoTime()}, to start the next stage from.
+     */
+    long record(Stage stage, long startNanos) {
+        long now = System.nanoTime();
+        stages[stage.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(now - startNanos));
+        return now;
+    }
+
+    /**
+     * Note that a configuration was updated or deleted just now.
+     */
+    void applied() {
+        lastApplyTime.set(System.currentTimeMillis());
+    }
+
+    @Override
+    public String getConfigurationDirectory() {
+        return String.valueOf(manager.getConfigurationDirectory());
+    }
+
+    @Override
+    public long getEventsReceived() {
+        return manager.getEventsReceived();
+    }
+
+    @Override
+    public long getEventsApplied() {
+        return manager.getEventsApplied();
+    }
+
+    @Override
+    public long getRescans() {
+        return manager.getRescans();
+    }
+
+    @Override
+    public long getFilesParsed() {
+        return manager.getFilesParsed();
+    }
+
+    @Override
+    public int getFilesTracked() {
+        return manager.getFilesTracked();
+    }
+
+    @Override
+    public int getApplyQueueDepth() {
+        return manager.getApplyQueueDepth();
+    }
+
+    @Override
+    public long getLastApplyTime() {
+        return lastApplyTime.get();
+    }
+
+    @Override
+    public Map<String, Integer> getKeysPerPid() {
+        return manager.getKeysPerPid();
+    }
+
+    @Override
+    public Map<String, StageStatistics> getStages() {
+        Map<String, StageStatistics> result = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            result.put(stage.name().toLowerCase(Locale.ROOT), StageStatistics.of(stage(stage)));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Changes found by listing the tree every so often and comparing sizes and modification
+ * times with the previous listing. This is for filesystems where the {@link java.nio.file.WatchService}
+ * is slow or misses events (network and overlay mounts). A listing costs one stat per file,
+ * and only files whose size or time changed are reported, so only they get read.
+ */
+final class PollingChangeSource implements ChangeSource {
+    private static final Logger LOG = LoggerFactory.getLogger(PollingChangeSource.class);
+    private final Path root;
+    private final boolean recursive;
+    private final long intervalNanos;
+    private Map<Path, FileFingerprint> previous = new HashMap<>();
+    private long nextPoll;
+
+    PollingChangeSource(Path root, boolean recursive, long intervalNanos) {
+        this.root = root;
+        this.recursive = recursive;
+        this.intervalNanos = intervalNanos;
+        nextPoll = System.nanoTime() + intervalNanos;
+    }
+
+    @Override
+    public List<Path> listFiles() throws IOException {
+        previous = snapshot();
+        return new ArrayList<>(previous.keySet());
+    }
+
+    private Map<Path, FileFingerprint> snapshot() throws IOException {
+        final Map<Path, FileFingerprint> files = new HashMap<>();
+        final long now = System.currentTimeMillis();
+        Files.walkFileTree(root, EnumSet.noneOf(FileVisitOption.class), recursive ? Integer.MAX_VALUE : 1, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isDirectory()) {
+                    // no digest; we only compare sizes and times.
+                    files.put(file, new FileFingerprint(attrs.size(), attrs.lastModifiedTime().toMillis(), now, null));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                if (file.equals(root)) {
+                    throw exc;
+                }
+                // most likely deleted while we were looking; the next poll will tell.
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    @Override
+    public boolean await(long timeoutNanos, Listener listener) throws InterruptedException {
+        long untilPoll = nextPoll - System.nanoTime();
+        if (timeoutNanos >= 0 && timeoutNanos < untilPoll) {
+            TimeUnit.NANOSECONDS.sleep(timeoutNanos);
+            return true;
+        }
+        TimeUnit.NANOSECONDS.sleep(untilPoll);
+        nextPoll = System.nanoTime() + intervalNanos;
+
+        Map<Path, FileFingerprint> current;
+        try {
+            current = snapshot();
+        } catch (NoSuchFileException e) {
+            LOG.error("Configuration directory {} is gone", root);
+            return false;
+        } catch (IOException e) {
+            LOG.error("Error listing {}", root, e);
+            return true;
+        }
+        for (Map.Entry<Path, FileFingerprint> entry : current.entrySet()) {
+            FileFingerprint before = previous.get(entry.getKey());
+            if (before == null || changed(before, entry.getValue())) {
+                listener.changed(entry.getKey(), EventCoalescer.Action.ADD_OR_UPDATE, 1);
+            }
+        }
+        for (Path path : previous.keySet()) {
+            if (!current.containsKey(path)) {
+                listener.changed(path, EventCoalescer.Action.DELETE, 1);
+            }
+        }
+        previous = current;
+        return true;
+    }
+
+    /*
+     * A time too recent to trust may hide a second write in the same tick, so a file whose
+     * stat has not changed is reported once more, at the first poll after its time settles;
+     * the digest check downstream keeps that from costing a parse.
+     */
+    private static boolean changed(FileFingerprint before, FileFingerprint after) {
+        if (before.size != after.size || before.modified != after.modified) {
+            return true;
+        }
+        return !settled(before) && settled(after);
+    }
+
+    private static boolean settled(FileFingerprint fingerprint) {
+        return fingerprint.observed - fingerprint.modified > FileFingerprint.MTIME_GRANULARITY_MILLIS;
+    }
+
+    @Override
+    public void close() {
+        // nothing is held open between polls.
+    }
+}
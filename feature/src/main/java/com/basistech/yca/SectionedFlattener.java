@@ -0,0 +1,386 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.JsonParserDelegate;
+import com.fasterxml.jackson.dataformat.yaml.YAMLParser;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Flattens large YAML files one top-level section at a time, and remembers the result,
+ * so that when a file changes only the sections whose bytes changed are parsed again
+ * and spliced into the previous result.
+ * <p>
+ * A section starts at a line that begins, in the first column, with a key of the root
+ * mapping, and runs up to the next such line. Each section is parsed as a document of
+ * its own; that gives the same keys and values as parsing the whole file as long as no
+ * section refers to an anchor in another and no two sections produce the same key. Anything that does not fit this, such as a flow-style
+ * root, more than one document, or a parse error, is left to the caller to flatten
+ * as a whole.
+ * <p>
+ * The cache holds the bytes and the flattened form of every file it has seen, so it is
+ * meant for the few very large files where re-parsing all of them is what hurts.
+ */
+final class SectionedFlattener {
+    private final JsonFactory factory;
+    private final ConcurrentMap<String, Sections> files = new ConcurrentHashMap<>();
+    private final AtomicLong sectionsParsed = new AtomicLong();
+    private final AtomicLong sectionsReused = new AtomicLong();
+
+    SectionedFlattener(JsonFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * The sections of one version of a file.
+     */
+    private static final class Sections {
+        final byte[] bytes;
+        // starts[0] is the end of the header (comments, directives, ---); section x is
+        // [starts[x], starts[x + 1]), and the last entry is the length of the file.
+        final int[] starts;
+        final int[] hashes;
+        final String[][] keys;
+        final Hashtable<String, Object> flat;
+
+        Sections(byte[] bytes, int[] starts, int[] hashes, String[][] keys, Hashtable<String, Object> flat) {
+            this.bytes = bytes;
+            this.starts = starts;
+            this.hashes = hashes;
+            this.keys = keys;
+            this.flat = flat;
+        }
+
+        int count() {
+            return starts.length - 1;
+        }
+    }
+
+    /**
+     * @param configKey the file's identity, under which its sections are remembered.
+     * @param bytes     the whole file; it is kept, so it must not be modified afterwards.
+     * @return the flattened file, which belongs to the caller; or null if the file does not
+     * split into sections that can be parsed on their own, in which case it is forgotten.
+     */
+    Dictionary<String, Object> flatten(String configKey, byte[] bytes) {
+        int[] starts = split(bytes);
+        Sections previous = files.remove(configKey);
+        if (starts == null) {
+            return null;
+        }
+        if (previous != null && !rangeEquals(previous.bytes, 0, previous.starts[0], bytes, 0, starts[0])) {
+            previous = null;
+        }
+
+        // Match each new section with an old one with the same bytes, wherever it was.
+        Map<Integer, Deque<Integer>> byHash = new HashMap<>();
+        if (previous != null) {
+            for (int x = 0; x < previous.count(); x++) {
+                Deque<Integer> same = byHash.get(previous.hashes[x]);
+                if (same == null) {
+                    same = new ArrayDeque<>();
+                    byHash.put(previous.hashes[x], same);
+                }
+                same.add(x);
+            }
+        }
+        int count = starts.length - 1;
+        int[] hashes = new int[count];
+        String[][] keys = new String[count][];
+        boolean[] kept = previous == null ? null : new boolean[previous.count()];
+        List<Dictionary<String, Object>> parsed = new ArrayList<>();
+        List<Integer> parsedSections = new ArrayList<>();
+        for (int x = 0; x < count; x++) {
+            hashes[x] = hash(bytes, starts[x], starts[x + 1]);
+            int old = previous == null ? -1 : take(byHash.get(hashes[x]), previous, bytes, starts[x], starts[x + 1]);
+            if (old >= 0) {
+                keys[x] = previous.keys[old];
+                kept[old] = true;
+                continue;
+            }
+            Dictionary<String, Object> section = parseSection(bytes, starts[x], starts[x + 1]);
+            if (section == null) {
+                return null;
+            }
+            parsed.add(section);
+            parsedSections.add(x);
+        }
+
+        // Splice: take out what the sections that are gone produced, and put in the new ones.
+        Hashtable<String, Object> flat = previous == null ? new Hashtable<String, Object>() : previous.flat;
+        if (previous != null) {
+            for (int x = 0; x < previous.count(); x++) {
+                if (!kept[x]) {
+                    for (String key : previous.keys[x]) {
+                        flat.remove(key);
+                    }
+                }
+            }
+        }
+        for (int y = 0; y < parsed.size(); y++) {
+            Dictionary<String, Object> section = parsed.get(y);
+            String[] sectionKeys = new String[section.size()];
+            int k = 0;
+            for (Enumeration<String> keyEnum = section.keys(); keyEnum.hasMoreElements();) {
+                String key = keyEnum.nextElement();
+                if (flat.put(key, section.get(key)) != null) {
+                    // two sections with the same key; which one wins depends on their order.
+                    return null;
+                }
+                sectionKeys[k++] = key;
+            }
+            keys[parsedSections.get(y)] = sectionKeys;
+        }
+        sectionsParsed.addAndGet(parsed.size());
+        sectionsReused.addAndGet(count - parsed.size());
+        files.put(configKey, new Sections(bytes, starts, hashes, keys, flat));
+        return new Hashtable<>(flat);
+    }
+
+    void forget(String configKey) {
+        files.remove(configKey);
+    }
+
+    /**
+     * @return the number of sections that have been parsed.
+     */
+    long sectionsParsed() {
+        return sectionsParsed.get();
+    }
+
+    /**
+     * @return the number of sections that were unchanged and were not parsed again.
+     */
+    long sectionsReused() {
+        return sectionsReused.get();
+    }
+
+    private static int take(Deque<Integer> candidates, Sections previous, byte[] bytes, int start, int end) {
+        if (candidates == null) {
+            return -1;
+        }
+        for (Iterator<Integer> it = candidates.iterator(); it.hasNext();) {
+            int old = it.next();
+            if (rangeEquals(previous.bytes, previous.starts[old], previous.starts[old + 1], bytes, start, end)) {
+                it.remove();
+                return old;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * One section must be a mapping with exactly one key.
+     */
+    private Dictionary<String, Object> parseSection(byte[] bytes, int start, int end) {
+        Dictionary<String, Object> section = new Hashtable<>();
+        try (JsonParser parser = new LocalAliases(factory.createParser(bytes, start, end - start))) {
+            if (parser.nextToken() != JsonToken.START_OBJECT || parser.nextToken() != JsonToken.FIELD_NAME) {
+                return null;
+            }
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            JsonNodeFlattener.flatten(parser, name, section);
+            if (parser.nextToken() != JsonToken.END_OBJECT || parser.nextToken() != null) {
+                return null;
+            }
+        } catch (IOException | RuntimeException e) {
+            // including an alias to an anchor in another section.
+            return null;
+        }
+        return section;
+    }
+
+    /**
+     * Find where the sections start, by looking at the first character of each line.
+     * @return the section starts, as in {@link Sections#starts}, or null if the file does
+     * not look like a block mapping that can be split this way.
+     */
+    static int[] split(byte[] bytes) {
+        List<Integer> starts = new ArrayList<>();
+        int line = 0;
+        if (bytes.length >= 3 && bytes[0] == (byte) 0xEF && bytes[1] == (byte) 0xBB && bytes[2] == (byte) 0xBF) {
+            // UTF-8 byte order mark, part of the header.
+            line = 3;
+        }
+        int headerEnd = -1;
+        while (line < bytes.length) {
+            byte c = bytes[line];
+            if (c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '#') {
+                // indented, blank, or a comment: part of whatever came before.
+                line = nextLine(bytes, line);
+                continue;
+            }
+            boolean inHeader = headerEnd < 0;
+            if (startsWith(bytes, line, "---") || startsWith(bytes, line, "...")) {
+                // a document marker; only one start, before the content, is allowed.
+                if (!inHeader || bytes[line] == '.' || !restOfLineBlank(bytes, line + 3)) {
+                    return null;
+                }
+            } else if (c == '%') {
+                if (!inHeader) {
+                    return null;
+                }
+            } else if (c == '-') {
+                // a sequence entry at the margin, in a sequence under a top-level key.
+                if (inHeader) {
+                    return null;
+                }
+            } else if (unsectionable(c)) {
+                return null;
+            } else {
+                if (inHeader) {
+                    headerEnd = line;
+                }
+                starts.add(line);
+            }
+            line = nextLine(bytes, line);
+        }
+        if (starts.isEmpty()) {
+            return null;
+        }
+        int[] result = new int[starts.size() + 1];
+        for (int x = 0; x < starts.size(); x++) {
+            result[x] = starts.get(x);
+        }
+        result[starts.size()] = bytes.length;
+        return result;
+    }
+
+    /*
+     * Fails on an alias to an anchor that is not in the section; not every version of the
+     * yaml parser does that by itself.
+     */
+    private static final class LocalAliases extends JsonParserDelegate {
+        private final Set<String> anchors = new HashSet<>();
+
+        LocalAliases(JsonParser parser) {
+            super(parser);
+        }
+
+        @Override
+        public JsonToken nextToken() throws IOException {
+            JsonToken token = delegate.nextToken();
+            if (delegate instanceof YAMLParser) {
+                YAMLParser yaml = (YAMLParser) delegate;
+                String anchor = yaml.getObjectId();
+                if (yaml.isCurrentAlias()) {
+                    if (!anchors.contains(yaml.getText())) {
+                        throw new IOException("Alias to an anchor outside the section: " + yaml.getText());
+                    }
+                } else if (anchor != null) {
+                    anchors.add(anchor);
+                }
+            }
+            return token;
+        }
+    }
+
+    /*
+     * Flow style, complex keys, properties on the root, or not UTF-8.
+     */
+    private static boolean unsectionable(byte c) {
+        switch (c) {
+        case '{':
+        case '[':
+        case '?':
+        case '&':
+        case '*':
+        case '!':
+        case '|':
+        case '>':
+        case '@':
+        case '`':
+        case 0:
+        case (byte) 0xFE:
+        case (byte) 0xFF:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static int nextLine(byte[] bytes, int from) {
+        for (int x = from; x < bytes.length; x++) {
+            if (bytes[x] == '\n') {
+                return x + 1;
+            }
+        }
+        return bytes.length;
+    }
+
+    private static boolean startsWith(byte[] bytes, int at, String prefix) {
+        if (at + prefix.length() > bytes.length) {
+            return false;
+        }
+        for (int x = 0; x < prefix.length(); x++) {
+            if (bytes[at + x] != prefix.charAt(x)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean restOfLineBlank(byte[] bytes, int from) {
+        for (int x = from; x < bytes.length && bytes[x] != '\n'; x++) {
+            if (bytes[x] != ' ' && bytes[x] != '\t' && bytes[x] != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] bytes, int start, int end) {
+        int hash = 1;
+        for (int x = start; x < end; x++) {
+            hash = 31 * hash + bytes[x];
+        }
+        return hash;
+    }
+
+    private static boolean rangeEquals(byte[] a, int aStart, int aEnd, byte[] b, int bStart, int bEnd) {
+        if (aEnd - aStart != bEnd - bStart) {
+            return false;
+        }
+        for (int x = 0; x < aEnd - aStart; x++) {
+            if (a[aStart + x] != b[bStart + x]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
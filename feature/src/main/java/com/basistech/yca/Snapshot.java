@@ -0,0 +1,320 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A binary record of what the manager last applied, so that a restart can skip the files
+ * that have not changed on the strength of their size and modification time alone.
+ * <p>
+ * The format is a header (magic number, version, and the directory it describes), the
+ * entries, and a CRC-32 of everything before it. It is written to a temporary file that
+ * is forced to disk and then moved into place, and the directory is forced after the move,
+ * so a crash leaves either the old snapshot or the new one. A snapshot that is truncated, fails its checksum, has another version,
+ * or describes another directory is ignored as a whole; each entry is also checked
+ * against ConfigurationAdmin by the manager before it is trusted.
+ */
+final class Snapshot {
+    private static final int MAGIC = 0x59434153; // "YCAS"
+    private static final int VERSION = 1;
+
+    private static final byte STRING = 0;
+    private static final byte INT = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte FLOAT = 4;
+    private static final byte SHORT = 5;
+    private static final byte BOOLEAN = 6;
+    private static final byte NULL = 7;
+    private static final byte BIG_INTEGER = 8;
+    private static final byte BIG_DECIMAL = 9;
+    private static final byte BYTES = 10;
+
+    private Snapshot() {
+        //
+    }
+
+    /**
+     * One applied file.
+     */
+    static final class Entry {
+        final String configKey;
+        final String pid;
+        final String factoryPid;
+        // ConfigurationAdmin's change count for the configuration right after we applied it.
+        final long changeCount;
+        final FileFingerprint fingerprint;
+        final Dictionary<String, ?> properties;
+
+        Entry(String configKey, String pid, String factoryPid, long changeCount, FileFingerprint fingerprint,
+              Dictionary<String, ?> properties) {
+            this.configKey = configKey;
+            this.pid = pid;
+            this.factoryPid = factoryPid;
+            this.changeCount = changeCount;
+            this.fingerprint = fingerprint;
+            this.properties = properties;
+        }
+    }
+
+    /**
+     * Replace the snapshot file atomically. Entries holding values that cannot be written
+     * are left out; those files are simply processed in full on the next start.
+     */
+    static void write(Path file, String directory, boolean recursive, List<Entry> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, directory);
+        out.writeBoolean(recursive);
+        List<byte[]> encoded = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            byte[] one = encode(entry);
+            if (one != null) {
+                encoded.add(one);
+            }
+        }
+        out.writeInt(encoded.size());
+        for (byte[] one : encoded) {
+            out.write(one);
+        }
+        out.flush();
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        out.flush();
+
+        Path directoryOfFile = file.toAbsolutePath().getParent();
+        Files.createDirectories(directoryOfFile);
+        Path temp = Files.createTempFile(directoryOfFile, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        forceDirectory(directoryOfFile);
+    }
+
+    /*
+     * The move is only durable once the directory that holds the name is on disk too.
+     * Not every platform can open a directory as a channel; there, this is best effort.
+     */
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not supported here.
+        }
+    }
+
+    /**
+     * @return the entries, or null if there is no usable snapshot for this directory.
+     */
+    static List<Entry> read(Path file, String directory, boolean recursive) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        if (bytes.length < 8) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 8);
+        if (ByteBuffer.wrap(bytes, bytes.length - 8, 8).getLong() != crc.getValue()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION || !directory.equals(readString(in))
+                || in.readBoolean() != recursive) {
+            return null;
+        }
+        int count = in.readInt();
+        List<Entry> entries = new ArrayList<>(count);
+        for (int x = 0; x < count; x++) {
+            entries.add(decode(in));
+        }
+        return entries;
+    }
+
+    private static byte[] encode(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, entry.configKey);
+        writeString(out, entry.pid);
+        out.writeBoolean(entry.factoryPid != null);
+        if (entry.factoryPid != null) {
+            writeString(out, entry.factoryPid);
+        }
+        out.writeLong(entry.changeCount);
+        out.writeLong(entry.fingerprint.size);
+        out.writeLong(entry.fingerprint.modified);
+        out.writeLong(entry.fingerprint.observed);
+        out.writeInt(entry.fingerprint.digest.length);
+        out.write(entry.fingerprint.digest);
+        out.writeInt(entry.properties.size());
+        for (Enumeration<String> keys = entry.properties.keys(); keys.hasMoreElements();) {
+            String key = keys.nextElement();
+            writeString(out, key);
+            if (!writeValue(out, entry.properties.get(key))) {
+                return null;
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Entry decode(DataInputStream in) throws IOException {
+        String configKey = readString(in);
+        String pid = readString(in);
+        String factoryPid = in.readBoolean() ? readString(in) : null;
+        long changeCount = in.readLong();
+        long size = in.readLong();
+        long modified = in.readLong();
+        long observed = in.readLong();
+        byte[] digest = new byte[in.readInt()];
+        in.readFully(digest);
+        int count = in.readInt();
+        Dictionary<String, Object> properties = new Hashtable<>();
+        for (int x = 0; x < count; x++) {
+            String key = readString(in);
+            properties.put(key, readValue(in));
+        }
+        return new Entry(configKey, pid, factoryPid, changeCount, new FileFingerprint(size, modified, observed, digest),
+                CompactDictionary.copyOf(properties));
+    }
+
+    /*
+     * The value types that flattening produces, plus the strings of our bookkeeping keys.
+     */
+    private static boolean writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value == JsonNodeFlattener.NULL) {
+            out.writeByte(NULL);
+        } else if (value instanceof BigInteger) {
+            out.writeByte(BIG_INTEGER);
+            writeString(out, value.toString());
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(BIG_DECIMAL);
+            writeString(out, value.toString());
+        } else if (value instanceof byte[]) {
+            out.writeByte(BYTES);
+            out.writeInt(((byte[]) value).length);
+            out.write((byte[]) value);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case STRING:
+            return readString(in);
+        case INT:
+            return in.readInt();
+        case LONG:
+            return in.readLong();
+        case DOUBLE:
+            return in.readDouble();
+        case FLOAT:
+            return in.readFloat();
+        case SHORT:
+            return in.readShort();
+        case BOOLEAN:
+            return in.readBoolean();
+        case NULL:
+            return JsonNodeFlattener.NULL;
+        case BIG_INTEGER:
+            return new BigInteger(readString(in));
+        case BIG_DECIMAL:
+            return new BigDecimal(readString(in));
+        case BYTES:
+            byte[] value = new byte[in.readInt()];
+            in.readFully(value);
+            return value;
+        default:
+            throw new IOException("Unknown value type " + type);
+        }
+    }
+
+    // writeUTF stops at 64K, and values can be longer than that.
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
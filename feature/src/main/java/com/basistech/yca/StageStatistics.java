@@ -0,0 +1,71 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A snapshot of the latencies recorded for one stage, in microseconds.
+ * Percentiles are upper bounds, to the nearest power of two.
+ */
+public final class StageStatistics {
+    private final long count;
+    private final double mean;
+    private final long p50;
+    private final long p99;
+    private final long max;
+
+    @ConstructorProperties({"count", "mean", "p50", "p99", "max" })
+    public StageStatistics(long count, double mean, long p50, long p99, long max) {
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.max = max;
+    }
+
+    static StageStatistics of(Histogram histogram) {
+        return new StageStatistics(histogram.count(), histogram.mean(), histogram.percentile(0.5),
+                histogram.percentile(0.99), histogram.max());
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "count " + count + ", mean " + mean + "us, p50 " + p50 + "us, p99 " + p99 + "us, max " + max + "us";
+    }
+}
@@ -0,0 +1,202 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Changes from the JDK {@link WatchService}. In recursive mode, each directory gets its own
+ * key, registered as listings find it.
+ */
+final class WatchServiceChangeSource implements ChangeSource {
+    private static final Logger LOG = LoggerFactory.getLogger(WatchServiceChangeSource.class);
+    private final Path root;
+    private final boolean recursive;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+    private final Map<Path, WatchKey> watchKeys = new HashMap<>();
+
+    WatchServiceChangeSource(Path root, boolean recursive) throws IOException {
+        this.root = root;
+        this.recursive = recursive;
+        watchService = FileSystems.getDefault().newWatchService();
+        try {
+            // subdirectories are registered as listings find them.
+            watch(root);
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public List<Path> listFiles() throws IOException {
+        return listFiles(root);
+    }
+
+    /*
+     * In recursive mode, watch each directory before it is listed so that nothing
+     * created afterwards is missed.
+     */
+    private List<Path> listFiles(final Path directory) throws IOException {
+        final List<Path> files = new ArrayList<>();
+        Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption.class), recursive ? Integer.MAX_VALUE : 1, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (recursive) {
+                    watch(dir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isDirectory()) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                if (file.equals(directory)) {
+                    throw exc;
+                }
+                // most likely deleted while we were looking; the events will tell.
+                LOG.warn("Failed to look at {}", file, exc);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    @Override
+    public boolean await(long timeoutNanos, Listener listener) throws InterruptedException {
+        WatchKey key;
+        if (timeoutNanos < 0) {
+            key = watchService.take();
+        } else {
+            key = watchService.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+        // null for a key we have already given up on.
+        Path directory = key == null ? null : watchedDirectories.get(key);
+        if (directory == null) {
+            return true;
+        }
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                // events were lost; we can't tell which.
+                listener.overflowed();
+                continue;
+            }
+
+            @SuppressWarnings("unchecked")
+            WatchEvent<Path> ev = (WatchEvent<Path>) event;
+            dispatch(directory, ev, listener);
+        }
+
+        boolean valid = key.reset();
+        if (!valid) {
+            if (directory.equals(root)) {
+                return false;
+            }
+            // a subdirectory went away.
+            unwatch(directory, listener);
+        }
+        return true;
+    }
+
+    private void dispatch(Path directory, WatchEvent<Path> ev, Listener listener) {
+        // The event only has the name; resolve it against the directory that the key watches.
+        Path child = directory.resolve(ev.context());
+
+        if (ev.kind() == ENTRY_DELETE) {
+            if (watchKeys.containsKey(child)) {
+                unwatch(child, listener);
+            } else {
+                listener.changed(child, EventCoalescer.Action.DELETE, ev.count());
+            }
+        } else if (recursive && ev.kind() == ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+            // Files may have landed in it before we started watching, so list it too.
+            try {
+                for (Path path : listFiles(child)) {
+                    listener.changed(path, EventCoalescer.Action.ADD_OR_UPDATE, 1);
+                }
+            } catch (IOException e) {
+                LOG.error("Error listing new directory {}", child, e);
+            }
+        } else {
+            listener.changed(child, EventCoalescer.Action.ADD_OR_UPDATE, ev.count());
+        }
+    }
+
+    private void watch(Path directory) throws IOException {
+        // registering the same directory again just gives back its key.
+        WatchKey key = directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        watchedDirectories.put(key, directory);
+        watchKeys.put(directory, key);
+    }
+
+    private void unwatch(Path directory, Listener listener) {
+        Iterator<Map.Entry<Path, WatchKey>> entries = watchKeys.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Path, WatchKey> entry = entries.next();
+            if (entry.getKey().startsWith(directory)) {
+                entry.getValue().cancel();
+                watchedDirectories.remove(entry.getValue());
+                entries.remove();
+            }
+        }
+        listener.directoryRemoved(directory);
+    }
+
+    @Override
+    public void close() {
+        for (WatchKey key : watchedDirectories.keySet()) {
+            key.cancel();
+        }
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            LOG.error("Error closing watch service", e);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static com.basistech.yca.FlatteningConfigFileManagerTest.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * What every {@link ChangeSource} has to do; each implementation's test extends this.
+ */
+public abstract class AbstractChangeSourceTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ChangeSource source;
+    private final Recorder recorder = new Recorder();
+
+    abstract ChangeSource create(Path root, boolean recursive) throws Exception;
+
+    @After
+    public void close() {
+        if (source != null) {
+            source.close();
+        }
+    }
+
+    private static class Recorder implements ChangeSource.Listener {
+        final Map<Path, EventCoalescer.Action> changes = new HashMap<>();
+        final Set<Path> removedDirectories = new HashSet<>();
+
+        @Override
+        public void changed(Path file, EventCoalescer.Action action, int repeats) {
+            changes.put(file, action);
+        }
+
+        @Override
+        public void directoryRemoved(Path directory) {
+            removedDirectories.add(directory);
+        }
+
+        @Override
+        public void overflowed() {
+            //
+        }
+
+        boolean gone(Path file) {
+            if (changes.get(file) == EventCoalescer.Action.DELETE) {
+                return true;
+            }
+            for (Path directory : removedDirectories) {
+                if (file.startsWith(directory)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private void waitFor(Callable<Boolean> condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!condition.call()) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new AssertionError("Timed out waiting for changes; saw " + recorder.changes);
+            }
+            assertTrue(source.await(TimeUnit.MILLISECONDS.toNanos(20), recorder));
+        }
+    }
+
+    private Set<Path> list(File root, boolean recursive) throws Exception {
+        source = create(root.toPath(), recursive);
+        return new HashSet<>(source.listFiles());
+    }
+
+    @Test
+    public void listsFiles() throws Exception {
+        File dir = folder.newFolder("list");
+        write(dir, "a.yaml", "value: 1\n");
+        write(dir, "b.json", "{}");
+        assertTrue(new File(dir, "sub").mkdir());
+        write(new File(dir, "sub"), "c.yaml", "value: 3\n");
+        assertEquals(new HashSet<>(Arrays.asList(dir.toPath().resolve("a.yaml"), dir.toPath().resolve("b.json"))),
+                list(dir, false));
+    }
+
+    @Test
+    public void reportsAddModifyDelete() throws Exception {
+        File dir = folder.newFolder("changes");
+        write(dir, "a.yaml", "value: 1\n");
+        write(dir, "b.yaml", "value: 2\n");
+        list(dir, false);
+        final Path a = dir.toPath().resolve("a.yaml");
+        final Path b = dir.toPath().resolve("b.yaml");
+        final Path c = dir.toPath().resolve("c.yaml");
+
+        write(dir, "c.yaml", "value: 3\n");
+        write(dir, "a.yaml", "value: 11\n");
+        Files.delete(b);
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return recorder.changes.get(a) == EventCoalescer.Action.ADD_OR_UPDATE
+                        && recorder.changes.get(c) == EventCoalescer.Action.ADD_OR_UPDATE
+                        && recorder.gone(b);
+            }
+        });
+    }
+
+    @Test
+    public void untouchedFilesAreNotReported() throws Exception {
+        File dir = folder.newFolder("untouched");
+        write(dir, "old.yaml", "value: 1\n");
+        Path old = dir.toPath().resolve("old.yaml");
+        Files.setLastModifiedTime(old, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)));
+        list(dir, false);
+
+        write(dir, "new.yaml", "value: 2\n");
+        final Path added = dir.toPath().resolve("new.yaml");
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return recorder.changes.containsKey(added);
+            }
+        });
+        // give the source a few more chances to get it wrong.
+        for (int x = 0; x < 5; x++) {
+            source.await(TimeUnit.MILLISECONDS.toNanos(50), recorder);
+        }
+        assertFalse(recorder.changes.containsKey(old));
+    }
+
+    @Test
+    public void recursiveFindsNewSubtrees() throws Exception {
+        File dir = folder.newFolder("tree");
+        File sub = new File(dir, "sub");
+        assertTrue(sub.mkdir());
+        write(sub, "one.yaml", "value: 1\n");
+        assertEquals(new HashSet<>(Arrays.asList(sub.toPath().resolve("one.yaml"))), list(dir, true));
+
+        File deeper = new File(new File(dir, "new"), "deeper");
+        assertTrue(deeper.mkdirs());
+        write(deeper, "two.yaml", "value: 2\n");
+        final Path two = deeper.toPath().resolve("two.yaml");
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return recorder.changes.get(two) == EventCoalescer.Action.ADD_OR_UPDATE;
+            }
+        });
+    }
+
+    @Test
+    public void recursiveReportsRemovedSubtrees() throws Exception {
+        File dir = folder.newFolder("removed");
+        File sub = new File(dir, "sub");
+        assertTrue(sub.mkdir());
+        write(sub, "one.yaml", "value: 1\n");
+        list(dir, true);
+
+        Files.move(sub.toPath(), folder.getRoot().toPath().resolve("elsewhere"));
+        final Path one = sub.toPath().resolve("one.yaml");
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return recorder.gone(one);
+            }
+        });
+    }
+}
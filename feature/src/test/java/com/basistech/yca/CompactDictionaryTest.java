@@ -0,0 +1,120 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CompactDictionaryTest {
+
+    private static Map<String, Object> toMap(Dictionary<String, ?> dict) {
+        Map<String, Object> map = new HashMap<>();
+        for (Enumeration<String> keys = dict.keys(); keys.hasMoreElements();) {
+            String key = keys.nextElement();
+            map.put(key, dict.get(key));
+        }
+        return map;
+    }
+
+    @Test
+    public void sameContentsAsHashtable() {
+        Random random = new Random(1234);
+        for (int x = 0; x < 500; x++) {
+            JsonNode node = FlattenerTest.randomNode(random, 0);
+            Dictionary<String, ?> flat = JsonNodeFlattener.flatten(node);
+            CompactDictionary compact = CompactDictionary.copyOf(flat);
+            Map<String, Object> expected = toMap(flat);
+            assertEquals(flat.size(), compact.size());
+            assertEquals(expected, toMap(compact));
+            assertEquals(expected, compact.asMap());
+            assertEquals(compact, CompactDictionary.copyOf(new Hashtable<>(expected)));
+            for (String key : expected.keySet()) {
+                assertEquals(key, expected.get(key), compact.get(key));
+                for (String probe : new String[] {key + "x", key.isEmpty() ? "x" : key.substring(0, key.length() - 1) }) {
+                    assertEquals(probe, expected.get(probe), compact.get(probe));
+                }
+            }
+            assertEquals(JsonNodeFlattener.unflatten(flat), JsonNodeFlattener.unflatten(compact));
+        }
+    }
+
+    @Test
+    public void keysInOrder() {
+        Hashtable<String, Object> table = new Hashtable<>();
+        for (int x = 0; x < 200; x++) {
+            table.put("weights[" + x + "]", x / 4.0);
+            table.put("names[" + x + "].first", "n" + x);
+        }
+        CompactDictionary compact = CompactDictionary.copyOf(table);
+        List<String> keys = Collections.list(compact.keys());
+        List<String> sorted = new ArrayList<>(table.keySet());
+        Collections.sort(sorted, JsonNodeFlattener.KEY_ORDER);
+        assertEquals(sorted, keys);
+        for (int x = 0; x < 200; x++) {
+            assertEquals(x / 4.0, compact.getDouble("weights[" + x + "]", -1), 0);
+            assertEquals("n" + x, compact.get("names[" + x + "].first"));
+        }
+        assertEquals(-1, compact.getLong("weights[3]", -1));
+        assertNull(compact.get("weights[200]"));
+        assertNull(compact.get("weights"));
+        assertNull(compact.get(""));
+    }
+
+    @Test
+    public void primitives() {
+        Hashtable<String, Object> table = new Hashtable<>();
+        table.put("int", 7);
+        table.put("long", 1L << 40);
+        table.put("double", -0.5);
+        table.put("yes", true);
+        table.put("no", false);
+        table.put("nothing", JsonNodeFlattener.NULL);
+        CompactDictionary compact = CompactDictionary.copyOf(table);
+        assertEquals(7, compact.get("int"));
+        assertEquals(1L << 40, compact.get("long"));
+        assertEquals(-0.5, compact.get("double"));
+        assertEquals(Boolean.TRUE, compact.get("yes"));
+        assertEquals(Boolean.FALSE, compact.get("no"));
+        assertSame(JsonNodeFlattener.NULL, compact.get("nothing"));
+        assertEquals(1L << 40, compact.getLong("long", 0));
+        assertEquals(7.0, compact.getDouble("int", 0), 0);
+        assertTrue(compact.getLong("missing", 42) == 42);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void readOnly() {
+        Hashtable<String, Object> table = new Hashtable<>();
+        table.put("a", 1);
+        CompactDictionary.copyOf(table).put("b", 2);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.google.common.io.Resources;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Dictionary;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class ConfigConverterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String[] FORMATS = {"json", "smile", "cbor", "yaml" };
+
+    @Test
+    public void everyFormatFlattensTheSame() throws Exception {
+        Path yaml = Paths.get(Resources.getResource(ConfigConverterTest.class, "flatten-test.yaml").toURI());
+        Dictionary<String, ?> expected = JsonNodeFlattener.flatten(yaml);
+        for (String format : FORMATS) {
+            Path converted = folder.getRoot().toPath().resolve("converted." + format);
+            ConfigConverter.convert(yaml, converted);
+            assertEquals(format, expected, JsonNodeFlattener.flatten(converted));
+        }
+    }
+
+    @Test
+    public void numberTypesSurvive() throws Exception {
+        Path json = folder.getRoot().toPath().resolve("numbers.json");
+        Files.write(json, ("{\"int\": 7, \"long\": 12345678901, \"big\": 123456789012345678901234567890,"
+                + " \"negative\": -123456789012345678901234567890,"
+                + " \"double\": 0.1, \"null\": null, \"nested\": [[1], [true, \"x\"]]}").getBytes(StandardCharsets.UTF_8));
+        Dictionary<String, ?> expected = JsonNodeFlattener.flatten(json);
+        assertEquals(new BigInteger("123456789012345678901234567890"), expected.get("big"));
+        for (String format : new String[] {"smile", "cbor" }) {
+            Path binary = folder.getRoot().toPath().resolve("numbers." + format);
+            ConfigConverter.convert(json, binary);
+            assertEquals(format, expected, JsonNodeFlattener.flatten(binary));
+            Path back = folder.getRoot().toPath().resolve("back-" + format + ".json");
+            ConfigConverter.convert(binary, back);
+            assertEquals(format, expected, JsonNodeFlattener.flatten(back));
+        }
+    }
+
+    @Test
+    public void bundleStreamConverts() throws Exception {
+        Path yaml = folder.getRoot().toPath().resolve("all.pids.yaml");
+        Files.write(yaml, "alpha:\n  color: blue\n---\nbeta-one:\n  size: [1, 2]\n".getBytes(StandardCharsets.UTF_8));
+        Path smile = folder.getRoot().toPath().resolve("all.pids.smile");
+        ConfigConverter.convert(yaml, smile);
+        Map<String, Dictionary<String, Object>> members;
+        try (JsonParser parser = ConfigFormats.readerFor(smile).getFactory().createParser(smile.toFile())) {
+            members = ConfigurationBundle.read(parser);
+        }
+        assertEquals(2, members.size());
+        assertEquals("blue", members.get("alpha").get("color"));
+        assertEquals(2, members.get("beta-one").get("size[1]"));
+    }
+
+    @Test
+    public void failedConversionLeavesNothing() throws Exception {
+        File dir = folder.newFolder("failed");
+        Path bad = dir.toPath().resolve("bad.json");
+        Files.write(bad, "{\"unterminated\": [".getBytes(StandardCharsets.UTF_8));
+        try {
+            ConfigConverter.convert(bad, dir.toPath().resolve("bad.smile"));
+            fail("converted a malformed file");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(Files.exists(dir.toPath().resolve("bad.smile")));
+        assertEquals(1, dir.list().length);
+    }
+}
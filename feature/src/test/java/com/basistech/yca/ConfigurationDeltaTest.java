@@ -0,0 +1,73 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigurationDeltaTest {
+
+    private static Dictionary<String, Object> dict(Object... entries) {
+        Dictionary<String, Object> dict = new Hashtable<>();
+        for (int x = 0; x < entries.length; x += 2) {
+            dict.put((String) entries[x], entries[x + 1]);
+        }
+        return dict;
+    }
+
+    @Test
+    public void addedRemovedChanged() {
+        ConfigurationDelta delta = ConfigurationDelta.between(
+                dict("same", 1, "changed", "a", "removed", true, "ignored", "x"),
+                dict("same", 1, "changed", "b", "added", 2.5, "ignored", "y"),
+                Collections.singleton("ignored"));
+        assertEquals(ConfigurationDelta.Kind.UPDATED, delta.getKind());
+        assertEquals(Collections.singletonMap("added", (Object) 2.5), delta.getAdded());
+        assertEquals(Collections.singletonMap("removed", (Object) true), delta.getRemoved());
+        assertEquals(Collections.singletonMap("changed", (Object) "b"), delta.getChanged());
+    }
+
+    @Test
+    public void identicalIsEmpty() {
+        ConfigurationDelta delta = ConfigurationDelta.between(
+                dict("a", 1, "b", new byte[] {1, 2}, "service.pid", "p"),
+                dict("a", 1, "b", new byte[] {1, 2}),
+                Collections.singleton("service.pid"));
+        assertTrue(delta.isEmpty());
+    }
+
+    @Test
+    public void createdAndDeleted() {
+        Dictionary<String, Object> config = dict("a", 1, "b", "two");
+        ConfigurationDelta created = ConfigurationDelta.between(null, config, Collections.<String>emptySet());
+        assertEquals(ConfigurationDelta.Kind.CREATED, created.getKind());
+        assertEquals(2, created.getAdded().size());
+        ConfigurationDelta deleted = ConfigurationDelta.between(config, null, Collections.<String>emptySet())
+                .forConfiguration("pid", null, "file:/pid.yaml");
+        assertEquals(ConfigurationDelta.Kind.DELETED, deleted.getKind());
+        assertEquals(2, deleted.getRemoved().size());
+        assertEquals("pid", deleted.getPid());
+        assertEquals("file:/pid.yaml", deleted.getFilename());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.yca;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Coalescing, with a made-up clock.
+ */
+public class EventCoalescerTest {
+    private static final Path A = Paths.get("/config/a.yaml");
+    private static final Path B = Paths.get("/config/b.yaml");
+
+    @Test
+    public void burstBecomesOneUpdate() {
+        EventCoalescer coalescer = new EventCoalescer(100);
+        coalescer.add(A, EventCoalescer.Action.ADD_OR_UPDATE, 0);
+        coalescer.add(A, EventCoalescer.Action.ADD_OR_UPDATE, 10);
+        coalescer.add(A, EventCoalescer.Action.ADD_OR_UPDATE, 50);
+        assertTrue(coalescer.drain(100).isEmpty());
+        assertEquals(50, coalescer.nanosUntilNext(100));
+        List<Map.Entry<Path, EventCoalescer.Action>> due = coalescer.drain(150);
+        assertEquals(1, due.size());
+        assertEquals(A, due.get(0).getKey());
+        assertEquals(EventCoalescer.Action.ADD_OR_UPDATE, due.get(0).getValue());
+        assertTrue(coalescer.isEmpty());
+        assertEquals(3, coalescer.eventsReceived());
+        assertEquals(1, coalescer.eventsApplied());
+    }
+
+    @Test
+    public void lastEventWins() {
+        EventCoalescer coalescer = new EventCoalescer(100);
+        coalescer.add(A, EventCoalescer.Action.ADD_OR_UPDATE, 0);
+        coalescer.add(A, EventCoalescer.Action.DELETE, 10);
+        coalescer.add(B, EventCoalescer.Action.DELETE, 20);
+        coalescer.add(B, EventCoalescer.Action.ADD_OR_UPDATE, 30);
+        List<Map.Entry<Path, EventCoalescer.Action>> due = coalescer.drain(1000);
+        assertEquals(2, due.size());
+        assertEquals(A, due.get(0).getKey());
+        assertEquals(EventCoalescer.Action.DELETE, due.get(0).getValue());
+        assertEquals(B, due.get(1).getKey());
+        assertEquals(EventCoalescer.Action.ADD_OR_UPDATE, due.get(1).getValue());
+    }
+
+    @Test
+    public void filesComeDueSeparately() {
+        EventCoalescer coalescer = new EventCoalescer(100);
+        coalescer.add(A, EventCoalescer.Action.ADD_OR_UPDATE, 0);
+        coalescer.add(B, EventCoalescer.Action.ADD_OR_UPDATE, 60);
+        coalescer.add(A, EventCoalescer.Action.ADD_OR_UPDATE, 80);
+        List<Map.Entry<Path, EventCoalescer.Action>> due = coalescer.drain(170);
+        assertEquals(1, due.size());
+        assertEquals(B, due.get(0).getKey());
+        assertEquals(10, coalescer.nanosUntilNext(170));
+        assertEquals(A, coalescer.drain(180).get(0).getKey());
+    }
+
+    @Test
+    public void noQuietPeriod() {
+        EventCoalescer coalescer = new EventCoalescer(0);
+        coalescer.add(A, EventCoalescer.Action.ADD_OR_UPDATE, 5);
+        assertEquals(1, coalescer.drain(5).size());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import com.fasterxml.jackson.core.JsonParser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Dictionary;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads into the recycled buffer and into a direct buffer have to agree.
+ */
+public class FileContentsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String table(int rows) {
+        StringBuilder yaml = new StringBuilder("table:\n");
+        for (int x = 0; x < rows; x++) {
+            yaml.append("  key").append(x).append(": [ ").append(x).append(", value").append(x).append(" ]\n");
+        }
+        return yaml.toString();
+    }
+
+    private static Dictionary<String, ?> flatten(FileContents.Content content) throws Exception {
+        try (JsonParser parser = content.createParser(ConfigFormats.readerFor("yaml").getFactory())) {
+            return JsonNodeFlattener.flatten(parser);
+        }
+    }
+
+    @Test
+    public void directMatchesBuffered() throws Exception {
+        File file = folder.newFile("table.yaml");
+        byte[] bytes = table(20000).getBytes(StandardCharsets.UTF_8);
+        Files.write(file.toPath(), bytes);
+        Path path = file.toPath();
+
+        FileContents.Content buffered = new FileContents(Long.MAX_VALUE).read(path, bytes.length);
+        assertFalse(buffered.isDirect());
+        assertEquals(bytes.length, buffered.length());
+        byte[] digest = buffered.digest();
+        assertArrayEquals(FileFingerprint.digest(bytes, 0, bytes.length), digest);
+        Dictionary<String, ?> expected = flatten(buffered);
+        assertEquals(40000, expected.size());
+
+        FileContents.Content direct = new FileContents(1024).read(path, bytes.length);
+        assertTrue(direct.isDirect());
+        assertEquals(bytes.length, direct.length());
+        assertArrayEquals(digest, direct.digest());
+        assertEquals(expected, flatten(direct));
+        // the digest must not use up the buffer.
+        assertArrayEquals(digest, direct.digest());
+        // a stale size, smaller than the file, still reads all of it.
+        direct = new FileContents(1024).read(path, 2048);
+        assertTrue(direct.isDirect());
+        assertEquals(bytes.length, direct.length());
+        assertArrayEquals(digest, direct.digest());
+    }
+
+    @Test
+    public void sizeChangedSinceStat() throws Exception {
+        File file = folder.newFile("grown.yaml");
+        byte[] bytes = table(100).getBytes(StandardCharsets.UTF_8);
+        Files.write(file.toPath(), bytes);
+        FileContents contents = new FileContents(1024 * 1024);
+        // a stale size, smaller than the file, and then one larger than it.
+        FileContents.Content content = contents.read(file.toPath(), 10);
+        assertEquals(bytes.length, content.length());
+        assertEquals(200, flatten(content).size());
+        content = contents.read(file.toPath(), 2 * 1024 * 1024);
+        assertFalse(content.isDirect());
+        assertEquals(bytes.length, content.length());
+        assertArrayEquals(FileFingerprint.digest(bytes, 0, bytes.length), content.digest());
+    }
+}
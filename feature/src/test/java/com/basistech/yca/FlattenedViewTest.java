@@ -0,0 +1,117 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FlattenedViewTest {
+
+    @Test
+    public void subtree() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode node = mapper.readTree("{\"name\": \"service\", \"hosts\": [\"alpha\", \"beta\"],"
+                + " \"database\": {\"url\": \"jdbc:h2:mem:1\", \"pool\": {\"min\": 1, \"max\": 10}}}");
+        Dictionary<String, ?> flat = JsonNodeFlattener.flatten(node);
+        for (FlattenedView root : new FlattenedView[] {FlattenedView.of(flat), FlattenedView.of(CompactDictionary.copyOf(flat)) }) {
+            FlattenedView pool = root.at("database.pool");
+            assertTrue(pool.isObject());
+            assertEquals(2, pool.keyCount());
+            assertEquals(node.get("database").get("pool"), pool.toJsonNode());
+            assertEquals(pool.toJsonNode(), root.get("database").get("pool").toJsonNode());
+            assertEquals(Arrays.asList("max", "min"), pool.childNames());
+            assertEquals(10, pool.get("max").getValue());
+
+            FlattenedView hosts = root.get("hosts");
+            assertTrue(hosts.isArray());
+            assertEquals(Arrays.asList("[0]", "[1]"), hosts.childNames());
+            assertEquals("beta", root.at("hosts[1]").getValue());
+            assertEquals("beta", hosts.at("[1]").getValue());
+            assertEquals("beta", hosts.get(1).toJsonNode().textValue());
+
+            assertTrue(root.get("name").isValue());
+            assertEquals(Arrays.asList("database", "hosts", "name"), root.childNames());
+            assertEquals(node, root.toJsonNode());
+
+            // prefixes of keys that are not nodes.
+            assertTrue(root.at("database.poo").isMissing());
+            assertTrue(root.at("hosts[2]").isMissing());
+            assertTrue(root.at("nam").isMissing());
+            assertNull(root.at("nam").toJsonNode());
+            assertNull(pool.getValue());
+        }
+    }
+
+    @Test
+    public void matchesUnflattenRandom() {
+        Random random = new Random(4321);
+        for (int x = 0; x < 300; x++) {
+            // unflatten drops empty containers and renumbers arrays; flatten what it builds,
+            // so that every node in the expected tree has keys. The root has to be an object.
+            ObjectNode generated = JsonNodeFactory.instance.objectNode();
+            generated.set("root", FlattenerTest.randomNode(random, 0));
+            JsonNode expected = JsonNodeFlattener.unflatten(JsonNodeFlattener.flatten(generated));
+            Dictionary<String, ?> flat = JsonNodeFlattener.flatten(expected);
+            FlattenedView view = FlattenedView.of(flat);
+            FlattenedView compact = FlattenedView.of(CompactDictionary.copyOf(flat));
+            assertEquals(expected, view.toJsonNode());
+            for (String field : view.childNames()) {
+                check(expected.get(field), view.get(field), view, compact);
+            }
+        }
+    }
+
+    private static void check(JsonNode expected, FlattenedView node, FlattenedView root, FlattenedView compact) {
+        String path = node.getPath();
+        assertFalse(path, node.isMissing());
+        assertEquals(path, expected, node.toJsonNode());
+        assertEquals(path, expected, root.at(path).toJsonNode());
+        assertEquals(path, expected, compact.at(path).toJsonNode());
+        assertEquals(path, expected.isContainerNode(), !node.isValue());
+        List<String> names = new ArrayList<>();
+        if (expected.isArray()) {
+            for (int x = 0; x < expected.size(); x++) {
+                names.add("[" + x + "]");
+                check(expected.get(x), node.get(x), root, compact);
+            }
+        } else {
+            for (Iterator<String> fields = expected.fieldNames(); fields.hasNext();) {
+                String field = fields.next();
+                names.add(field);
+                check(expected.get(field), node.get(field), root, compact);
+            }
+        }
+        assertEquals(path, names, node.childNames());
+        assertEquals(path, names, compact.at(path).childNames());
+    }
+}
@@ -16,16 +16,25 @@
 
 package com.basistech.yca;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import com.google.common.io.Resources;
 import org.junit.Test;
 
+import java.math.BigInteger;
 import java.net.URL;
+import java.nio.file.Paths;
 import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 /**
  *
@@ -44,4 +53,99 @@ public class FlattenerTest {
         assertEquals("a", dict.get("ingredients.topping[0]"));
         assertEquals("dog", dict.get("ingredients.topping[2].cat"));
     }
+
+    @Test
+    public void flattenFile() throws Exception {
+        URL testDocUrl = Resources.getResource(FlattenerTest.class, "flatten-test.yaml");
+        JsonNode node = new ObjectMapper(new YAMLFactory()).readTree(testDocUrl);
+        assertEquals(JsonNodeFlattener.flatten(node), JsonNodeFlattener.flatten(Paths.get(testDocUrl.toURI())));
+    }
+
+    @Test
+    public void internKeys() throws Exception {
+        URL testDocUrl = Resources.getResource(FlattenerTest.class, "flatten-test.yaml");
+        JsonNode node = new ObjectMapper(new YAMLFactory()).readTree(testDocUrl);
+        Dictionary<String, ?> dict = JsonNodeFlattener.flatten(node, true);
+        assertEquals(JsonNodeFlattener.flatten(node), dict);
+        for (Enumeration<String> keys = dict.keys(); keys.hasMoreElements();) {
+            String key = keys.nextElement();
+            assertSame(key.intern(), key);
+        }
+    }
+
+    @Test
+    public void streamingMatchesTree() throws Exception {
+        ObjectMapper jsonMapper = new ObjectMapper();
+        ObjectMapper yamlMapper = new ObjectMapper(new YAMLFactory());
+        Random random = new Random(1234);
+        for (int trial = 0; trial < 500; trial++) {
+            JsonNode generated = randomNode(random, 0);
+            for (ObjectMapper mapper : new ObjectMapper[] {jsonMapper, yamlMapper }) {
+                String text = mapper.writeValueAsString(generated);
+                Dictionary<String, ?> expected = JsonNodeFlattener.flatten(mapper.readTree(text));
+                Dictionary<String, ?> actual;
+                try (JsonParser parser = mapper.getFactory().createParser(text)) {
+                    actual = JsonNodeFlattener.flatten(parser);
+                }
+                assertEquals(text, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void repeatedKeysMatchTree() throws Exception {
+        ObjectMapper jsonMapper = new ObjectMapper();
+        ObjectMapper yamlMapper = new ObjectMapper(new YAMLFactory());
+        String[] texts = {
+            "{\"a\": {\"b\": 1, \"c\": [1, 2]}, \"a\": 2}",
+            "{\"a\": 1, \"a\": {\"b\": 2}}",
+            "{\"a\": [1, {\"x\": 2}], \"ab\": 3, \"a\": [4]}",
+            "{\"o\": {\"a\": 1, \"a\": 2, \"a.b\": 3}}",
+        };
+        for (String text : texts) {
+            for (ObjectMapper mapper : new ObjectMapper[] {jsonMapper, yamlMapper }) {
+                Dictionary<String, ?> expected = JsonNodeFlattener.flatten(mapper.readTree(text));
+                Dictionary<String, ?> actual;
+                try (JsonParser parser = mapper.getFactory().createParser(text)) {
+                    actual = JsonNodeFlattener.flatten(parser);
+                }
+                assertEquals(text, expected, actual);
+            }
+        }
+    }
+
+    static JsonNode randomNode(Random random, int depth) {
+        JsonNodeFactory factory = JsonNodeFactory.instance;
+        int choice = random.nextInt(depth > 4 ? 7 : 9);
+        switch (choice) {
+        case 0:
+            return factory.textNode("s" + random.nextInt(1000));
+        case 1:
+            return factory.numberNode(random.nextInt());
+        case 2:
+            return factory.numberNode(random.nextLong() | (1L << 40));
+        case 3:
+            return factory.numberNode(BigInteger.valueOf(Long.MAX_VALUE).multiply(BigInteger.valueOf(random.nextInt(1000) + 2)));
+        case 4:
+            return factory.numberNode(random.nextInt(100000) / 8.0);
+        case 5:
+            return factory.booleanNode(random.nextBoolean());
+        case 6:
+            return factory.nullNode();
+        case 7:
+            ArrayNode array = factory.arrayNode();
+            int elements = random.nextInt(13);
+            for (int x = 0; x < elements; x++) {
+                array.add(randomNode(random, depth + 1));
+            }
+            return array;
+        default:
+            ObjectNode object = factory.objectNode();
+            int fields = random.nextInt(6);
+            for (int x = 0; x < fields; x++) {
+                object.set("f" + random.nextInt(20), randomNode(random, depth + 1));
+            }
+            return object;
+        }
+    }
 }
@@ -0,0 +1,1022 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.yca;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.service.cm.Configuration;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Run the manager against a real directory and an in-memory ConfigurationAdmin.
+ */
+public class FlatteningConfigFileManagerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<FlatteningConfigFileManager> managers = new ArrayList<>();
+
+    @After
+    public void stopManagers() {
+        for (FlatteningConfigFileManager manager : managers) {
+            manager.deactivate();
+        }
+    }
+
+    private FlatteningConfigFileManager start(File directory, InMemoryConfigurationAdmin admin, Object... properties) throws Exception {
+        return startWith(new FlatteningConfigFileManager(), directory, admin, properties);
+    }
+
+    private FlatteningConfigFileManager startWith(FlatteningConfigFileManager manager, File directory, InMemoryConfigurationAdmin admin,
+                                                  Object... properties) throws Exception {
+        Hashtable<String, Object> props = new Hashtable<>();
+        props.put("configurationDirectory", directory.getAbsolutePath());
+        for (int x = 0; x < properties.length; x += 2) {
+            props.put((String) properties[x], properties[x + 1]);
+        }
+        manager.setConfigurationAdmin(admin);
+        manager.start(props);
+        managers.add(manager);
+        assertTrue("inventory finished", manager.awaitInventory(60, TimeUnit.SECONDS));
+        return manager;
+    }
+
+    /*
+     * Write next to the directory and move into place, so that the watcher never sees a
+     * half-written file.
+     */
+    static void write(File directory, String name, String content) throws Exception {
+        Path temp = Files.createTempFile(directory.getParentFile().toPath(), "write", ".tmp");
+        Files.write(temp, content.getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, new File(directory, name).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static String key(File directory, String name) {
+        return new File(directory, name).toPath().toAbsolutePath().toUri().toString();
+    }
+
+    static void waitFor(Callable<Boolean> condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (!condition.call()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Timed out waiting for condition");
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void inventory() throws Exception {
+        File dir = folder.newFolder("inventory");
+        write(dir, "alpha.yaml", "color: blue\nsize: 3\n");
+        write(dir, "beta.json", "{\"list\": [1, 2]}");
+        write(dir, "gamma-one.yml", "name: one\n");
+        write(dir, "ignored", "no suffix\n");
+        InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        start(dir, admin);
+
+        Map<String, Dictionary<String, Object>> configs = admin.snapshot();
+        assertEquals(3, configs.size());
+        assertEquals("blue", configs.get("alpha").get("color"));
+        assertEquals(3, configs.get("alpha").get("size"));
+        assertEquals(2, configs.get("beta").get("list[1]"));
+        assertEquals(key(dir, "alpha.yaml"), configs.get("alpha").get(FlatteningConfigFileManager.FILENAME_PROPERTY_KEY));
+        Dictionary<String, Object> factoryConfig = admin.byFilename(FlatteningConfigFileManager.FILENAME_PROPERTY_KEY).get(key(dir, "gamma-one.yml"));
+        assertEquals("one", factoryConfig.get("name"));
+        assertEquals("gamma", factoryConfig.get("service.factoryPid"));
+    }
+
+    @Test
+    public void parallelInventoryMatchesSequential() throws Exception {
+        File dir = folder.newFolder("many");
+        for (int x = 0; x < 1000; x++) {
+            String name = x % 10 == 0 ? "factory-pid" + x + ".yaml" : "pid" + x + (x % 2 == 0 ? ".json" : ".yaml");
+            String content = name.endsWith(".json")
+                    ? "{\"index\": " + x + ", \"nested\": {\"values\": [\"a\", \"b\", " + x + "]}}"
+                    : "index: " + x + "\nnested:\n  values: [ a, b, " + x + " ]\n";
+            write(dir, name, content);
+        }
+
+        InMemoryConfigurationAdmin sequentialAdmin = new InMemoryConfigurationAdmin();
+        start(dir, sequentialAdmin);
+        InMemoryConfigurationAdmin parallelAdmin = new InMemoryConfigurationAdmin();
+        start(dir, parallelAdmin, "inventoryThreads", "4");
+
+        Map<String, Dictionary<String, Object>> expected = sequentialAdmin.byFilename(FlatteningConfigFileManager.FILENAME_PROPERTY_KEY);
+        assertEquals(1000, expected.size());
+        assertEquals(expected, parallelAdmin.byFilename(FlatteningConfigFileManager.FILENAME_PROPERTY_KEY));
+    }
+
+    @Test
+    public void followsChanges() throws Exception {
+        followChanges();
+    }
+
+    @Test
+    public void followsChangesByPolling() throws Exception {
+        followChanges("changeSource", "poll", "pollIntervalMillis", "50");
+    }
+
+    private void followChanges(Object... properties) throws Exception {
+        File dir = folder.newFolder("changes");
+        final InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        start(dir, admin, properties);
+
+        write(dir, "delta.yaml", "value: 1\n");
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                Dictionary<String, Object> props = admin.snapshot().get("delta");
+                return props != null && Integer.valueOf(1).equals(props.get("value"));
+            }
+        });
+
+        write(dir, "delta.yaml", "value: 2\n");
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return Integer.valueOf(2).equals(admin.snapshot().get("delta").get("value"));
+            }
+        });
+        Path path = new File(dir, "delta.yaml").toPath();
+        assertEquals(key(dir, "delta.yaml"), admin.snapshot().get("delta").get(FlatteningConfigFileManager.FILENAME_PROPERTY_KEY));
+
+        Files.delete(path);
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return admin.snapshot().isEmpty();
+            }
+        });
+        assertNull(admin.snapshot().get("delta"));
+    }
+
+    @Test
+    public void recursiveWatch() throws Exception {
+        File dir = folder.newFolder("tree");
+        File a = new File(dir, "a");
+        File b = new File(a, "b");
+        assertTrue(b.mkdirs());
+        write(dir, "top.yaml", "value: 0\n");
+        write(a, "one.yaml", "value: 1\n");
+        write(b, "two.yaml", "value: 2\n");
+
+        InMemoryConfigurationAdmin flatAdmin = new InMemoryConfigurationAdmin();
+        start(dir, flatAdmin);
+        assertEquals(Collections.singleton("top"), flatAdmin.snapshot().keySet());
+
+        final InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        start(dir, admin, "recursive", "true");
+        assertEquals(new HashSet<>(Arrays.asList("top", "one", "two")), admin.snapshot().keySet());
+        assertEquals(key(b, "two.yaml"), admin.snapshot().get("two").get(FlatteningConfigFileManager.FILENAME_PROPERTY_KEY));
+
+        // a new subtree, with a file written before we can have seen the directory.
+        File d = new File(new File(dir, "c"), "d");
+        assertTrue(d.mkdirs());
+        write(d, "three.yaml", "value: 3\n");
+        write(b, "two.yaml", "value: 22\n");
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                Map<String, Dictionary<String, Object>> configs = admin.snapshot();
+                return configs.containsKey("three") && Integer.valueOf(22).equals(configs.get("two").get("value"));
+            }
+        });
+
+        // moving a subtree away gives no events for the files in it.
+        Files.move(a.toPath(), folder.getRoot().toPath().resolve("moved"));
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return admin.snapshot().keySet().equals(new HashSet<>(Arrays.asList("top", "three")));
+            }
+        });
+    }
+
+    @Test
+    public void deltaListenersSeeOnlyChanges() throws Exception {
+        File dir = folder.newFolder("delta");
+        StringBuilder content = new StringBuilder();
+        for (int x = 0; x < 5000; x++) {
+            content.append("key").append(x).append(": ").append(x).append('\n');
+        }
+        write(dir, "eta.yaml", content.toString());
+        final InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        final List<ConfigurationDelta> deltas = Collections.synchronizedList(new ArrayList<ConfigurationDelta>());
+        final FlatteningConfigFileManager manager = new FlatteningConfigFileManager();
+        manager.addDeltaListener(new ConfigurationDeltaListener() {
+            @Override
+            public void configurationChanged(ConfigurationDelta delta) {
+                deltas.add(delta);
+            }
+        });
+        manager.setConfigurationAdmin(admin);
+        Hashtable<String, Object> props = new Hashtable<>();
+        props.put("configurationDirectory", dir.getAbsolutePath());
+        manager.start(props);
+        managers.add(manager);
+        assertTrue(manager.awaitInventory(60, TimeUnit.SECONDS));
+        assertEquals(1, deltas.size());
+        assertEquals(ConfigurationDelta.Kind.CREATED, deltas.get(0).getKind());
+        assertEquals(5000, deltas.get(0).getAdded().size());
+        assertEquals("eta", deltas.get(0).getPid());
+
+        // the same configuration, written differently: parsed, but not applied.
+        write(dir, "eta.yaml", "# a comment\n" + content);
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return manager.getFilesParsed() == 2;
+            }
+        });
+        assertEquals(1, admin.updateCalls.get());
+        assertEquals(1, deltas.size());
+
+        write(dir, "eta.yaml", content.toString().replace("key7: 7\n", "key7: seven\n") + "extra: true\n");
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return deltas.size() == 2;
+            }
+        });
+        ConfigurationDelta delta = deltas.get(1);
+        assertEquals(ConfigurationDelta.Kind.UPDATED, delta.getKind());
+        assertEquals(Collections.singletonMap("key7", (Object) "seven"), delta.getChanged());
+        assertEquals(Collections.singletonMap("extra", (Object) true), delta.getAdded());
+        assertTrue(delta.getRemoved().isEmpty());
+
+        Files.delete(new File(dir, "eta.yaml").toPath());
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return deltas.size() == 3;
+            }
+        });
+        assertEquals(ConfigurationDelta.Kind.DELETED, deltas.get(2).getKind());
+        assertEquals(5001, deltas.get(2).getRemoved().size());
+    }
+
+    @Test
+    public void indexAvoidsFilterScans() throws Exception {
+        final File dir = folder.newFolder("index");
+        for (int x = 0; x < 20; x++) {
+            write(dir, "pid" + x + ".yaml", "value: " + x + "\n");
+            write(dir, "factory-f" + x + ".yaml", "value: " + x + "\n");
+        }
+        final InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        start(dir, admin);
+        assertEquals(40, admin.snapshot().size());
+
+        write(dir, "factory-f3.yaml", "value: 100\n");
+        Files.delete(new File(dir, "pid4.yaml").toPath());
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                Map<String, Dictionary<String, Object>> byFile = admin.byFilename(FlatteningConfigFileManager.FILENAME_PROPERTY_KEY);
+                return byFile.size() == 39 && Integer.valueOf(100).equals(byFile.get(key(dir, "factory-f3.yaml")).get("value"));
+            }
+        });
+        // the one listConfigurations is the index load at startup.
+        assertEquals(1, admin.listCalls.get());
+    }
+
+    @Test
+    public void reconcileKeepsIndexWhileApplying() throws Exception {
+        final File dir = folder.newFolder("busy");
+        final int files = 200;
+        for (int x = 0; x < files; x++) {
+            write(dir, "factory-f" + x + ".yaml", "value: " + x + "\n");
+        }
+        write(dir, "sentinel.yaml", "value: 1\n");
+        final InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        start(dir, admin, "applyThreads", "4");
+        assertEquals(files + 1, admin.snapshot().size());
+
+        // the next event for sentinel finds its configuration gone and reloads the index,
+        // slowly, while the pool creates and updates other configurations.
+        admin.listDelayMillis = 200;
+        admin.getConfiguration("sentinel").delete();
+        write(dir, "sentinel.yaml", "value: 2\n");
+        for (int x = 0; x < files; x++) {
+            write(dir, "factory-n" + x + ".yaml", "value: " + x + "\n");
+            write(dir, "factory-f" + x + ".yaml", "value: " + (files + x) + "\n");
+        }
+        for (int x = 0; x < files; x++) {
+            write(dir, "factory-n" + x + ".yaml", "value: " + (files + x) + "\n");
+        }
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                Map<String, Dictionary<String, Object>> byFile = admin.byFilename(FlatteningConfigFileManager.FILENAME_PROPERTY_KEY);
+                for (int x = 0; x < files; x++) {
+                    Dictionary<String, Object> f = byFile.get(key(dir, "factory-f" + x + ".yaml"));
+                    Dictionary<String, Object> n = byFile.get(key(dir, "factory-n" + x + ".yaml"));
+                    if (f == null || n == null || !Integer.valueOf(files + x).equals(f.get("value"))
+                            || !Integer.valueOf(files + x).equals(n.get("value"))) {
+                        return false;
+                    }
+                }
+                return byFile.containsKey(key(dir, "sentinel.yaml"));
+            }
+        });
+        // one configuration per file: none was created twice.
+        assertEquals(2 * files + 1, admin.snapshot().size());
+    }
+
+    @Test
+    public void restartReusesConfigurations() throws Exception {
+        File dir = folder.newFolder("restart");
+        write(dir, "factory-a.yaml", "value: 1\n");
+        write(dir, "factory-b.yaml", "value: 2\n");
+        InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        start(dir, admin).deactivate();
+        Map<String, Dictionary<String, Object>> first = admin.snapshot();
+        int updates = admin.updateCalls.get();
+
+        start(dir, admin);
+        assertEquals(first, admin.snapshot());
+        assertEquals(updates, admin.updateCalls.get());
+    }
+
+    @Test
+    public void reconcilesAfterExternalDelete() throws Exception {
+        File dir = folder.newFolder("external");
+        write(dir, "epsilon.yaml", "value: 1\n");
+        final InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        start(dir, admin);
+        admin.getConfiguration("epsilon").delete();
+
+        write(dir, "epsilon.yaml", "value: 2\n");
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                Dictionary<String, Object> props = admin.snapshot().get("epsilon");
+                return props != null && Integer.valueOf(2).equals(props.get("value"));
+            }
+        });
+    }
+
+    @Test
+    public void quietPeriodCoalescesBursts() throws Exception {
+        File dir = folder.newFolder("quiet");
+        final InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        FlatteningConfigFileManager manager = start(dir, admin, "quietPeriodMillis", 300);
+        for (int x = 1; x <= 10; x++) {
+            write(dir, "zeta.yaml", "value: " + x + "\n");
+        }
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                Dictionary<String, Object> props = admin.snapshot().get("zeta");
+                return props != null && Integer.valueOf(10).equals(props.get("value"));
+            }
+        });
+        assertTrue(manager.getEventsReceived() >= 2);
+        assertTrue(manager.getEventsApplied() < manager.getEventsReceived());
+        assertEquals(1, admin.updateCalls.get());
+    }
+
+    @Test
+    public void identicalRewriteIsNotParsed() throws Exception {
+        File dir = folder.newFolder("rewrite");
+        write(dir, "eta.yaml", "value: 1\n");
+        final InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        final FlatteningConfigFileManager manager = start(dir, admin);
+        assertEquals(1, manager.getFilesParsed());
+
+        write(dir, "eta.yaml", "value: 1\n");
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return manager.getEventsApplied() > 0;
+            }
+        });
+        write(dir, "eta.yaml", "value: 2\n");
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return Integer.valueOf(2).equals(admin.snapshot().get("eta").get("value"));
+            }
+        });
+        assertEquals(2, manager.getFilesParsed());
+    }
+
+    @Test
+    public void persistedDigestSkipsParsingOnRestart() throws Exception {
+        File dir = folder.newFolder("digest");
+        for (int x = 0; x < 10; x++) {
+            write(dir, "pid" + x + ".yaml", "value: " + x + "\n");
+        }
+        InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        FlatteningConfigFileManager first = start(dir, admin, "persistDigest", "true");
+        first.deactivate();
+        assertEquals(10, first.getFilesParsed());
+        assertNotNull(admin.snapshot().get("pid3").get(FlatteningConfigFileManager.DIGEST_PROPERTY_KEY));
+
+        write(dir, "pid3.yaml", "value: 33\n");
+        FlatteningConfigFileManager second = start(dir, admin, "persistDigest", "true");
+        assertEquals(1, second.getFilesParsed());
+        assertEquals(33, admin.snapshot().get("pid3").get("value"));
+    }
+
+    /*
+     * Files written an hour ago, so that their modification times can be trusted at once.
+     */
+    private static void writeOld(File dir, int count) throws Exception {
+        FileTime old = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+        for (int x = 0; x < count; x++) {
+            write(dir, "pid" + x + ".yaml", "value: " + x + "\nname: file" + x + "\nlist: [1, 2, 3]\n");
+            Files.setLastModifiedTime(new File(dir, "pid" + x + ".yaml").toPath(), old);
+        }
+    }
+
+    @Test
+    public void restartFromSnapshot() throws Exception {
+        File dir = folder.newFolder("snapshot");
+        String snapshot = new File(folder.getRoot(), "snapshot.bin").getAbsolutePath();
+        writeOld(dir, 1000);
+        InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        FlatteningConfigFileManager first = start(dir, admin, "snapshotFile", snapshot);
+        first.deactivate();
+        assertEquals(1000, first.getFilesParsed());
+        int updates = admin.updateCalls.get();
+
+        FlatteningConfigFileManager second = start(dir, admin, "snapshotFile", snapshot);
+        assertEquals(0, second.getFilesParsed());
+        assertEquals(0, ((ManagerMetrics) second.getMetrics()).stage(ManagerMetrics.Stage.READ).count());
+        assertEquals(updates, admin.updateCalls.get());
+        assertEquals(1000, second.getFilesTracked());
+        assertEquals(Integer.valueOf(5), second.getKeysPerPid().get("pid7"));
+    }
+
+    @Test
+    public void snapshotChecksAgainstFilesAndConfigurations() throws Exception {
+        File dir = folder.newFolder("stale");
+        String snapshot = new File(folder.getRoot(), "snapshot.bin").getAbsolutePath();
+        writeOld(dir, 10);
+        InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        start(dir, admin, "snapshotFile", snapshot).deactivate();
+
+        // changed behind our back in ConfigurationAdmin, and in the directory while we were down.
+        Configuration config = admin.getConfiguration("pid2", null);
+        Dictionary<String, Object> props = config.getProperties();
+        props.put("value", 99);
+        config.update(props);
+        write(dir, "pid5.yaml", "value: 55\n");
+
+        FlatteningConfigFileManager manager = start(dir, admin, "snapshotFile", snapshot);
+        assertEquals(2, manager.getFilesParsed());
+        assertEquals(2, admin.snapshot().get("pid2").get("value"));
+        assertEquals(55, admin.snapshot().get("pid5").get("value"));
+    }
+
+    @Test
+    public void corruptSnapshotIsIgnored() throws Exception {
+        File dir = folder.newFolder("corrupt");
+        File snapshot = new File(folder.getRoot(), "snapshot.bin");
+        writeOld(dir, 10);
+        InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        start(dir, admin, "snapshotFile", snapshot.getAbsolutePath()).deactivate();
+
+        byte[] bytes = Files.readAllBytes(snapshot.toPath());
+        bytes[bytes.length / 2] ^= 0x20;
+        Files.write(snapshot.toPath(), bytes);
+        write(dir, "pid5.yaml", "value: 55\n");
+
+        FlatteningConfigFileManager manager = start(dir, admin, "snapshotFile", snapshot.getAbsolutePath());
+        assertEquals(10, manager.getFilesParsed());
+        assertEquals(55, admin.snapshot().get("pid5").get("value"));
+        assertEquals(3, admin.snapshot().get("pid3").get("value"));
+    }
+
+    @Test
+    public void metricsBeforeStart() {
+        FlatteningConfigFileManagerMXBean metrics = new FlatteningConfigFileManager().getMetrics();
+        assertEquals(0, metrics.getEventsReceived());
+        assertEquals(0, metrics.getEventsApplied());
+        assertEquals(0, metrics.getFilesParsed());
+        assertEquals(0, metrics.getFilesTracked());
+        assertEquals(0, metrics.getApplyQueueDepth());
+        assertTrue(metrics.getKeysPerPid().isEmpty());
+    }
+
+    @Test
+    public void metricsThroughJmx() throws Exception {
+        File dir = folder.newFolder("metrics");
+        write(dir, "alpha.yaml", "color: blue\nsize: 3\n");
+        write(dir, "beta-one.json", "{\"list\": [1, 2, 3]}");
+        final InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        final FlatteningConfigFileManager manager = start(dir, admin);
+        write(dir, "alpha.yaml", "color: red\nsize: 3\n");
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return "red".equals(admin.snapshot().get("alpha").get("color"));
+            }
+        });
+
+        manager.registerMBean();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.basistech.yca:type=FlatteningConfigFileManager,directory=" + ObjectName.quote(dir.getAbsolutePath()));
+        try {
+            assertEquals(2, server.getAttribute(name, "FilesTracked"));
+            assertEquals(3L, server.getAttribute(name, "FilesParsed"));
+            assertTrue((Long) server.getAttribute(name, "LastApplyTime") > 0);
+            TabularData keys = (TabularData) server.getAttribute(name, "KeysPerPid");
+            assertEquals(2, keys.get(new Object[] {"alpha" }).get("value"));
+            assertEquals(3, keys.get(new Object[] {"beta-one" }).get("value"));
+            TabularData stages = (TabularData) server.getAttribute(name, "Stages");
+            CompositeData flatten = (CompositeData) stages.get(new Object[] {"flatten" }).get("value");
+            assertEquals(3L, flatten.get("count"));
+            CompositeData update = (CompositeData) stages.get(new Object[] {"update" }).get("value");
+            assertEquals(3L, update.get("count"));
+            CompositeData receive = (CompositeData) stages.get(new Object[] {"receive" }).get("value");
+            assertTrue((Long) receive.get("count") >= 1);
+        } finally {
+            manager.unregisterMBean();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void convertsIntoTheWatchedDirectory() throws Exception {
+        File dir = folder.newFolder("convert");
+        write(dir, "alpha.yaml", "color: blue\n");
+        // left behind by a conversion that did not finish.
+        write(dir, ".beta.smile123.tmp", "size: 2\n");
+        final InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        FlatteningConfigFileManager manager = start(dir, admin);
+        assertEquals(Collections.singleton("alpha"), admin.snapshot().keySet());
+        assertEquals(1, manager.getFilesParsed());
+
+        Path yaml = folder.newFile("beta.yaml").toPath();
+        Files.write(yaml, "size: 3\n".getBytes(StandardCharsets.UTF_8));
+        ConfigConverter.convert(yaml, new File(dir, "beta.smile").toPath());
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return admin.snapshot().containsKey("beta");
+            }
+        });
+        assertEquals(3, admin.snapshot().get("beta").get("size"));
+        assertEquals(2, manager.getFilesParsed());
+    }
+
+    @Test
+    public void bundleMakesManyConfigurations() throws Exception {
+        File dir = folder.newFolder("bundle");
+        write(dir, "services.pids.yaml", "alpha:\n  color: blue\nbeta-one:\n  size: 3\n---\ngamma:\n  list: [1, 2]\n");
+        write(dir, "delta.yaml", "plain: true\n");
+        final InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        FlatteningConfigFileManager manager = start(dir, admin);
+
+        Map<String, Dictionary<String, Object>> configs = admin.snapshot();
+        assertEquals(4, configs.size());
+        assertEquals("blue", configs.get("alpha").get("color"));
+        assertEquals(2, configs.get("gamma").get("list[1]"));
+        assertEquals(key(dir, "services.pids.yaml") + "#alpha", configs.get("alpha").get(FlatteningConfigFileManager.FILENAME_PROPERTY_KEY));
+        Dictionary<String, Object> factoryConfig = admin.byFilename(FlatteningConfigFileManager.FILENAME_PROPERTY_KEY)
+                .get(key(dir, "services.pids.yaml") + "#beta-one");
+        assertEquals(3, factoryConfig.get("size"));
+        assertEquals("beta", factoryConfig.get("service.factoryPid"));
+        assertEquals(2, manager.getFilesParsed());
+        assertEquals(Integer.valueOf(1), manager.getKeysPerPid().get("beta-one"));
+
+        // one configuration changes and one goes away; the other is not touched.
+        int updates = admin.updateCalls.get();
+        write(dir, "services.pids.yaml", "alpha:\n  color: red\nbeta-one:\n  size: 3\n");
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return !admin.snapshot().containsKey("gamma");
+            }
+        });
+        assertEquals("red", admin.snapshot().get("alpha").get("color"));
+        assertEquals(updates + 1, admin.updateCalls.get());
+
+        Files.delete(new File(dir, "services.pids.yaml").toPath());
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return admin.snapshot().keySet().equals(Collections.singleton("delta"));
+            }
+        });
+    }
+
+    @Test
+    public void malformedBundleIsIgnored() throws Exception {
+        File dir = folder.newFolder("badbundle");
+        write(dir, "twice.pids.json", "{\"alpha\": {\"a\": 1}, \"alpha\": {\"a\": 2}}");
+        write(dir, "flat.pids.json", "{\"alpha\": 1}");
+        write(dir, "good.pids.json", "{\"beta\": {\"b\": [true]}, \"gamma\": null}");
+        InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        start(dir, admin);
+        Map<String, Dictionary<String, Object>> configs = admin.snapshot();
+        assertEquals(new HashSet<>(Arrays.asList("beta", "gamma")), configs.keySet());
+        assertEquals(true, configs.get("beta").get("b[0]"));
+    }
+
+    @Test
+    public void pidNamedTwiceIsMadeFromOneFile() throws Exception {
+        final File dir = folder.newFolder("contested");
+        write(dir, "com.foo.yaml", "value: 1\n");
+        write(dir, "a.pids.yaml", "com.foo:\n  value: 2\nother:\n  value: 3\n");
+        final InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        final FlatteningConfigFileManager manager = start(dir, admin, "applyThreads", "4");
+        // the bundle sorts first, so it has com.foo.
+        assertEquals(new HashSet<>(Arrays.asList("com.foo", "other")), admin.snapshot().keySet());
+        assertEquals(key(dir, "a.pids.yaml") + "#com.foo", admin.snapshot().get("com.foo").get(FlatteningConfigFileManager.FILENAME_PROPERTY_KEY));
+
+        // the other claimants are refused, and leave it alone.
+        int updates = admin.updateCalls.get();
+        for (int x = 0; x < 5; x++) {
+            write(dir, "com.foo.yaml", "value: " + (10 + x) + "\n");
+            write(dir, "b.pids.yaml", "com.foo:\n  value: " + (20 + x) + "\n");
+        }
+        write(dir, "sentinel.yaml", "value: 0\n");
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return admin.snapshot().containsKey("sentinel") && manager.getApplyQueueDepth() == 0;
+            }
+        });
+        assertEquals(updates + 1, admin.updateCalls.get());
+        assertEquals(2, admin.snapshot().get("com.foo").get("value"));
+
+        // when the bundle lets go, a file that was refused takes over.
+        Files.delete(new File(dir, "a.pids.yaml").toPath());
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                Dictionary<String, Object> props = admin.snapshot().get("com.foo");
+                return !admin.snapshot().containsKey("other") && props != null && props.get("value") != null
+                        && !Integer.valueOf(2).equals(props.get("value"));
+            }
+        });
+        Object owner = admin.snapshot().get("com.foo").get(FlatteningConfigFileManager.FILENAME_PROPERTY_KEY);
+        assertTrue(owner.toString(), key(dir, "com.foo.yaml").equals(owner)
+                || (key(dir, "b.pids.yaml") + "#com.foo").equals(owner));
+        assertEquals(new HashSet<>(Arrays.asList("com.foo", "sentinel")), admin.snapshot().keySet());
+    }
+
+    @Test
+    public void bundleMatchesSeparateFiles() throws Exception {
+        File files = folder.newFolder("files");
+        File bundled = folder.newFolder("bundled");
+        StringBuilder bundle = new StringBuilder();
+        for (int x = 0; x < 2000; x++) {
+            String content = "index: " + x + "\nnested:\n  values: [ a, b, " + x + " ]\n";
+            write(files, "pid" + x + ".yaml", content);
+            bundle.append("pid").append(x).append(":\n  ").append(content.replace("\n", "\n  ").trim()).append('\n');
+        }
+        write(bundled, "all.pids.yaml", bundle.toString());
+
+        InMemoryConfigurationAdmin separateAdmin = new InMemoryConfigurationAdmin();
+        start(files, separateAdmin);
+        InMemoryConfigurationAdmin bundleAdmin = new InMemoryConfigurationAdmin();
+        start(bundled, bundleAdmin);
+
+        Map<String, Dictionary<String, Object>> expected = separateAdmin.snapshot();
+        Map<String, Dictionary<String, Object>> actual = bundleAdmin.snapshot();
+        assertEquals(2000, actual.size());
+        for (Map.Entry<String, Dictionary<String, Object>> entry : expected.entrySet()) {
+            Dictionary<String, Object> props = actual.get(entry.getKey());
+            entry.getValue().remove(FlatteningConfigFileManager.FILENAME_PROPERTY_KEY);
+            props.remove(FlatteningConfigFileManager.FILENAME_PROPERTY_KEY);
+            assertEquals(entry.getValue(), props);
+        }
+    }
+
+    @Test
+    public void keyIndexFollowsChanges() throws Exception {
+        File dir = folder.newFolder("query");
+        String snapshot = new File(folder.getRoot(), "snapshot.bin").getAbsolutePath();
+        write(dir, "alpha.yaml", "solr:\n  url: http://a\n  cores: [ one, two ]\ncolor: blue\n");
+        write(dir, "beta-one.yaml", "solr:\n  url: http://b\n");
+        InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        final FlatteningConfigFileManager manager = start(dir, admin, "snapshotFile", snapshot);
+        final ConfigurationKeyQuery query = manager.getKeyIndex();
+
+        // a factory configuration, so its PID is generated.
+        final String betaPid = pidFor(admin, key(dir, "beta-one.yaml"));
+        assertEquals(new HashSet<>(Arrays.asList("alpha", betaPid)), query.getPids("solr.url"));
+        assertEquals(new HashSet<>(Arrays.asList("solr.cores[0]", "solr.cores[1]", "solr.url")),
+                query.getKeysWithPrefix("solr.").keySet());
+        assertEquals(Collections.singleton("alpha"), query.getPids("color"));
+        assertTrue(query.getPids(FlatteningConfigFileManager.FILENAME_PROPERTY_KEY).isEmpty());
+
+        write(dir, "alpha.yaml", "color: red\n");
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return query.getPids("solr.url").equals(Collections.singleton(betaPid));
+            }
+        });
+        assertTrue(query.getKeysWithPrefix("solr.cores").isEmpty());
+
+        Files.delete(new File(dir, "beta-one.yaml").toPath());
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return query.getPidsWithPrefix("solr").isEmpty();
+            }
+        });
+        manager.deactivate();
+
+        // a restart that applies nothing still knows the keys.
+        FlatteningConfigFileManager second = start(dir, admin, "snapshotFile", snapshot);
+        assertEquals(Collections.singleton("color"), second.getKeyIndex().getKeysOf("alpha"));
+    }
+
+    private static String pidFor(InMemoryConfigurationAdmin admin, String configKey) {
+        for (Map.Entry<String, Dictionary<String, Object>> entry : admin.snapshot().entrySet()) {
+            if (configKey.equals(entry.getValue().get(FlatteningConfigFileManager.FILENAME_PROPERTY_KEY))) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void largeYamlReparsesOnlyChangedSections() throws Exception {
+        File dir = folder.newFolder("sections");
+        final StringBuilder text = new StringBuilder();
+        for (int x = 0; x < 100; x++) {
+            text.append("section").append(x).append(":\n  size: ").append(x).append("\n  tags:\n  - a\n  - b\n");
+        }
+        write(dir, "big.yaml", text.toString());
+        final InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        FlatteningConfigFileManager manager = start(dir, admin, "sectionThresholdBytes", "1");
+        SectionedFlattener sections = manager.getSectionedFlattener();
+        assertEquals(100, sections.sectionsParsed());
+
+        int at = text.indexOf("size: 42");
+        text.replace(at, at + 8, "size: 4242");
+        write(dir, "big.yaml", text.toString());
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return Integer.valueOf(4242).equals(admin.snapshot().get("big").get("section42.size"));
+            }
+        });
+        assertEquals(101, sections.sectionsParsed());
+        Dictionary<String, Object> config = admin.snapshot().get("big");
+        Dictionary<String, ?> expected = JsonNodeFlattener.flatten(new ObjectMapper(new YAMLFactory()).readTree(text.toString()));
+        for (Enumeration<String> keys = expected.keys(); keys.hasMoreElements();) {
+            String key = keys.nextElement();
+            assertEquals(key, expected.get(key), config.get(key));
+        }
+        int sectionKeys = 0;
+        for (Enumeration<String> keys = config.keys(); keys.hasMoreElements();) {
+            if (keys.nextElement().startsWith("section")) {
+                sectionKeys++;
+            }
+        }
+        assertEquals(expected.size(), sectionKeys);
+    }
+
+    @Test
+    public void rescanAppliesOnlyDifferences() throws Exception {
+        File dir = folder.newFolder("rescan");
+        for (int x = 0; x < 10; x++) {
+            write(dir, "pid" + x + ".yaml", "value: " + x + "\n");
+        }
+        InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        FlatteningConfigFileManager manager = start(dir, admin);
+        // stop watching, so that the rescan is the only way to notice these.
+        manager.deactivate();
+        write(dir, "pid2.yaml", "value: 22\n");
+        Files.delete(new File(dir, "pid5.yaml").toPath());
+        write(dir, "pid10.yaml", "value: 10\n");
+        long parsed = manager.getFilesParsed();
+
+        manager.rescan();
+        assertEquals(parsed + 2, manager.getFilesParsed());
+        Map<String, Dictionary<String, Object>> configs = admin.snapshot();
+        assertEquals(10, configs.size());
+        assertEquals(22, configs.get("pid2").get("value"));
+        assertEquals(10, configs.get("pid10").get("value"));
+        assertNull(configs.get("pid5"));
+    }
+
+    @Test
+    public void rescanTreatsFileGoneBeforeReadAsDeleted() throws Exception {
+        File dir = folder.newFolder("vanish");
+        write(dir, "pid1.yaml", "value: 1\n");
+        write(dir, "pid2.yaml", "value: 2\n");
+        InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        VanishingChangeSource source = new VanishingChangeSource(new WatchServiceChangeSource(dir.toPath(), false));
+        FlatteningConfigFileManager manager = new FlatteningConfigFileManager();
+        manager.setChangeSource(source);
+        startWith(manager, dir, admin);
+        manager.deactivate();
+        write(dir, "pid2.yaml", "value: 22\n");
+        source.vanish = new File(dir, "pid2.yaml").toPath();
+
+        manager.rescan();
+        Map<String, Dictionary<String, Object>> configs = admin.snapshot();
+        assertEquals(1, configs.get("pid1").get("value"));
+        assertNull(configs.get("pid2"));
+    }
+
+    /*
+     * Deletes a file right after listing it, as a writer might before the manager reads it.
+     */
+    private static final class VanishingChangeSource implements ChangeSource {
+        private final ChangeSource delegate;
+        private Path vanish;
+
+        VanishingChangeSource(ChangeSource delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public List<Path> listFiles() throws IOException {
+            List<Path> files = delegate.listFiles();
+            if (vanish != null) {
+                Files.delete(vanish);
+            }
+            return files;
+        }
+
+        @Override
+        public boolean await(long timeoutNanos, Listener listener) throws InterruptedException {
+            return delegate.await(timeoutNanos, listener);
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+    }
+
+    @Test
+    public void convergesUnderFileChurn() throws Exception {
+        churn(folder.newFolder("churn"));
+    }
+
+    @Test
+    public void convergesUnderFileChurnWithApplyPool() throws Exception {
+        FlatteningConfigFileManager manager = churn(folder.newFolder("churn"), "applyThreads", "4", "applyQueueLimit", "64");
+        assertEquals(0, manager.getApplyQueueDepth());
+        assertTrue(manager.getApplyQueueDepthHistogram().max() <= 64);
+    }
+
+    /*
+     * Drops every 500th change, and reports an overflow instead, as the watch service does
+     * when it loses events.
+     */
+    private static final class LossyChangeSource implements ChangeSource {
+        private final ChangeSource delegate;
+        private int changes;
+
+        LossyChangeSource(ChangeSource delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public List<Path> listFiles() throws IOException {
+            return delegate.listFiles();
+        }
+
+        @Override
+        public boolean await(long timeoutNanos, final Listener listener) throws InterruptedException {
+            return delegate.await(timeoutNanos, new Listener() {
+                @Override
+                public void changed(Path file, EventCoalescer.Action action, int repeats) {
+                    if (++changes % 500 == 0) {
+                        listener.overflowed();
+                    } else {
+                        listener.changed(file, action, repeats);
+                    }
+                }
+
+                @Override
+                public void directoryRemoved(Path directory) {
+                    listener.directoryRemoved(directory);
+                }
+
+                @Override
+                public void overflowed() {
+                    listener.overflowed();
+                }
+            });
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+    }
+
+    private FlatteningConfigFileManager churn(final File dir, Object... properties) throws Exception {
+        final InMemoryConfigurationAdmin admin = new InMemoryConfigurationAdmin();
+        FlatteningConfigFileManager manager = new FlatteningConfigFileManager();
+        manager.setChangeSource(new LossyChangeSource(new WatchServiceChangeSource(dir.toPath(), false)));
+        startWith(manager, dir, admin, properties);
+        final int files = 2000;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread[] writers = new Thread[4];
+        for (int w = 0; w < writers.length; w++) {
+            final int writer = w;
+            writers[w] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(writer);
+                    try {
+                        for (int pass = 0; pass < 3; pass++) {
+                            for (int x = writer; x < files; x += writers.length) {
+                                if (pass == 2 && x % 7 == 0) {
+                                    Files.delete(new File(dir, "pid" + x + ".yaml").toPath());
+                                } else {
+                                    write(dir, "pid" + x + ".yaml", "value: " + random.nextInt() + "\n");
+                                }
+                            }
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            writers[w].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError("A writer failed", failure.get());
+        }
+
+        final Map<String, Object> expected = new HashMap<>();
+        for (File file : dir.listFiles()) {
+            Map<?, ?> content = new ObjectMapper(new YAMLFactory()).readValue(file, Map.class);
+            expected.put(key(dir, file.getName()), content.get("value"));
+        }
+        assertEquals(files - (files + 6) / 7, expected.size());
+        waitFor(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                Map<String, Object> actual = new HashMap<>();
+                for (Map.Entry<String, Dictionary<String, Object>> entry
+                        : admin.byFilename(FlatteningConfigFileManager.FILENAME_PROPERTY_KEY).entrySet()) {
+                    actual.put(entry.getKey(), entry.getValue().get("value"));
+                }
+                return expected.equals(actual);
+            }
+        });
+        // the changes that went missing were found by rescanning.
+        assertTrue(manager.getRescans() > 0);
+        return manager;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.yca;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Just enough of a ConfigurationAdmin to run the manager against. Filters are limited
+ * to a single {@code (key=value)} or {@code (key=*)}.
+ */
+class InMemoryConfigurationAdmin implements ConfigurationAdmin {
+    private final Map<String, MemoryConfiguration> configurations = new HashMap<>();
+    private final AtomicInteger factoryCount = new AtomicInteger();
+    final AtomicInteger listCalls = new AtomicInteger();
+    final AtomicInteger updateCalls = new AtomicInteger();
+    // how long a listing takes to come back after it is taken, to widen races with it.
+    volatile long listDelayMillis;
+
+    @Override
+    public synchronized Configuration createFactoryConfiguration(String factoryPid) throws IOException {
+        String pid = factoryPid + "." + factoryCount.incrementAndGet();
+        MemoryConfiguration configuration = new MemoryConfiguration(pid, factoryPid);
+        configurations.put(pid, configuration);
+        return configuration;
+    }
+
+    @Override
+    public Configuration createFactoryConfiguration(String factoryPid, String location) throws IOException {
+        return createFactoryConfiguration(factoryPid);
+    }
+
+    @Override
+    public synchronized Configuration getConfiguration(String pid, String location) throws IOException {
+        MemoryConfiguration configuration = configurations.get(pid);
+        if (configuration == null) {
+            configuration = new MemoryConfiguration(pid, null);
+            configurations.put(pid, configuration);
+        }
+        return configuration;
+    }
+
+    @Override
+    public Configuration getConfiguration(String pid) throws IOException {
+        return getConfiguration(pid, null);
+    }
+
+    @Override
+    public Configuration[] listConfigurations(String filter) throws IOException, InvalidSyntaxException {
+        Configuration[] result = list(filter);
+        if (listDelayMillis > 0) {
+            try {
+                Thread.sleep(listDelayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return result;
+    }
+
+    private synchronized Configuration[] list(String filter) throws InvalidSyntaxException {
+        listCalls.incrementAndGet();
+        String key = null;
+        String value = null;
+        if (filter != null) {
+            if (!filter.startsWith("(") || !filter.endsWith(")") || filter.indexOf('=') == -1) {
+                throw new InvalidSyntaxException("Unsupported filter", filter);
+            }
+            key = filter.substring(1, filter.indexOf('='));
+            value = filter.substring(filter.indexOf('=') + 1, filter.length() - 1).replaceAll("\\\\(.)", "$1");
+        }
+        List<Configuration> result = new ArrayList<>();
+        for (MemoryConfiguration configuration : configurations.values()) {
+            Hashtable<String, Object> props = configuration.properties;
+            if (props == null) {
+                continue;
+            }
+            if (key == null || (props.containsKey(key) && ("*".equals(value) || value.equals(props.get(key))))) {
+                result.add(configuration);
+            }
+        }
+        return result.isEmpty() ? null : result.toArray(new Configuration[result.size()]);
+    }
+
+    /**
+     * @return the properties of every configuration that has any, by pid.
+     */
+    synchronized Map<String, Dictionary<String, Object>> snapshot() {
+        Map<String, Dictionary<String, Object>> result = new HashMap<>();
+        for (MemoryConfiguration configuration : configurations.values()) {
+            if (configuration.properties != null) {
+                result.put(configuration.pid, configuration.getProperties());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the properties of every configuration, by the file they came from.
+     */
+    synchronized Map<String, Dictionary<String, Object>> byFilename(String filenameKey) {
+        Map<String, Dictionary<String, Object>> result = new HashMap<>();
+        for (MemoryConfiguration configuration : configurations.values()) {
+            if (configuration.properties != null) {
+                Dictionary<String, Object> props = configuration.getProperties();
+                props.remove(Constants.SERVICE_PID);
+                result.put((String) props.get(filenameKey), props);
+            }
+        }
+        return result;
+    }
+
+    private class MemoryConfiguration implements Configuration {
+        private final String pid;
+        private final String factoryPid;
+        private Hashtable<String, Object> properties;
+        private boolean deleted;
+        private long changeCount;
+
+        MemoryConfiguration(String pid, String factoryPid) {
+            this.pid = pid;
+            this.factoryPid = factoryPid;
+        }
+
+        private void checkDeleted() {
+            if (deleted) {
+                throw new IllegalStateException("Configuration " + pid + " deleted");
+            }
+        }
+
+        @Override
+        public String getPid() {
+            checkDeleted();
+            return pid;
+        }
+
+        @Override
+        public Dictionary<String, Object> getProperties() {
+            synchronized (InMemoryConfigurationAdmin.this) {
+                checkDeleted();
+                return properties == null ? null : new Hashtable<>(properties);
+            }
+        }
+
+        @Override
+        public void update(Dictionary<String, ?> newProperties) throws IOException {
+            synchronized (InMemoryConfigurationAdmin.this) {
+                checkDeleted();
+                updateCalls.incrementAndGet();
+                Hashtable<String, Object> copy = new Hashtable<>();
+                for (Enumeration<String> keys = newProperties.keys(); keys.hasMoreElements();) {
+                    String key = keys.nextElement();
+                    copy.put(key, newProperties.get(key));
+                }
+                copy.put(Constants.SERVICE_PID, pid);
+                if (factoryPid != null) {
+                    copy.put(ConfigurationAdmin.SERVICE_FACTORYPID, factoryPid);
+                }
+                properties = copy;
+                changeCount++;
+            }
+        }
+
+        @Override
+        public void delete() throws IOException {
+            synchronized (InMemoryConfigurationAdmin.this) {
+                checkDeleted();
+                deleted = true;
+                configurations.remove(pid);
+            }
+        }
+
+        @Override
+        public String getFactoryPid() {
+            checkDeleted();
+            return factoryPid;
+        }
+
+        @Override
+        public void update() throws IOException {
+            checkDeleted();
+        }
+
+        @Override
+        public void setBundleLocation(String location) {
+            checkDeleted();
+        }
+
+        @Override
+        public String getBundleLocation() {
+            checkDeleted();
+            return null;
+        }
+
+        @Override
+        public long getChangeCount() {
+            synchronized (InMemoryConfigurationAdmin.this) {
+                checkDeleted();
+                return changeCount;
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KeyIndexTest {
+
+    private static Dictionary<String, Object> dict(String... keys) {
+        Hashtable<String, Object> table = new Hashtable<>();
+        for (String key : keys) {
+            table.put(key, key.length());
+        }
+        return table;
+    }
+
+    private static Set<String> set(String... values) {
+        return new TreeSet<>(Arrays.asList(values));
+    }
+
+    @Test
+    public void lookups() {
+        KeyIndex index = new KeyIndex(Collections.singleton("service.pid"));
+        index.put("alpha", dict("solr.url", "solr.cores[0].name", "color", "service.pid"));
+        index.put("beta", dict("solr.url", "size"));
+        index.put("gamma", dict("solrx", "color"));
+
+        assertEquals(set("alpha", "beta"), index.getPids("solr.url"));
+        assertTrue(index.getPids("service.pid").isEmpty());
+        assertTrue(index.getPids("missing").isEmpty());
+        assertEquals(set("solr.cores[0].name", "solr.url"), index.getKeysWithPrefix("solr.").keySet());
+        assertEquals(set("alpha", "beta"), index.getKeysWithPrefix("solr.").get("solr.url"));
+        assertEquals(set("alpha", "beta"), index.getPidsWithPrefix("solr."));
+        assertEquals(set("alpha", "beta", "gamma"), index.getPidsWithPrefix("solr"));
+        assertEquals(set("color", "size"), index.getKeys("a", "solr").keySet());
+        assertTrue(index.getKeys("z", "a").isEmpty());
+        assertEquals(5, index.getKeysWithPrefix("").size());
+        assertEquals(set("color", "solr.cores[0].name", "solr.url"), index.getKeysOf("alpha"));
+    }
+
+    @Test
+    public void indexesGoByNumber() {
+        KeyIndex index = new KeyIndex(Collections.<String>emptySet());
+        index.put("alpha", dict("a[1]", "a[2]", "a[10]", "a[10].x", "a[11]", "b"));
+        assertEquals(Arrays.asList("a[1]", "a[2]", "a[10]", "a[10].x", "a[11]", "b"),
+                new ArrayList<>(index.getKeysWithPrefix("").keySet()));
+        assertEquals(Arrays.asList("a[1]", "a[10]", "a[10].x", "a[11]"),
+                new ArrayList<>(index.getKeysWithPrefix("a[1").keySet()));
+        assertEquals(Arrays.asList("a[10]", "a[10].x"), new ArrayList<>(index.getKeysWithPrefix("a[10]").keySet()));
+        assertEquals(Arrays.asList("a[2]", "a[10]", "a[10].x"), new ArrayList<>(index.getKeys("a[2]", "a[11]").keySet()));
+        assertEquals(set("alpha"), index.getPidsWithPrefix("a[11"));
+        assertEquals(Arrays.asList("a[1]", "a[2]", "a[10]", "a[10].x", "a[11]", "b"),
+                new ArrayList<>(index.getKeysOf("alpha")));
+    }
+
+    @Test
+    public void updatesAndRemoves() {
+        KeyIndex index = new KeyIndex(Collections.<String>emptySet());
+        index.put("alpha", dict("a", "b", "c"));
+        index.put("beta", dict("b"));
+        index.put("alpha", dict("b", "d"));
+        assertTrue(index.getPids("a").isEmpty());
+        assertEquals(set("alpha", "beta"), index.getPids("b"));
+        assertEquals(set("alpha"), index.getPids("d"));
+        assertEquals(2, index.keyCount());
+
+        index.remove("alpha");
+        assertEquals(set("beta"), index.getPids("b"));
+        assertTrue(index.getPids("d").isEmpty());
+        assertEquals(1, index.keyCount());
+        index.remove("alpha");
+        index.remove("beta");
+        assertEquals(0, index.keyCount());
+    }
+
+    @Test
+    public void resultsAreCopies() {
+        KeyIndex index = new KeyIndex(Collections.<String>emptySet());
+        index.put("alpha", dict("a"));
+        Set<String> pids = index.getPids("a");
+        SortedMap<String, Set<String>> keys = index.getKeysWithPrefix("");
+        index.put("beta", dict("a", "b"));
+        assertEquals(set("alpha"), pids);
+        assertEquals(set("a"), keys.keySet());
+    }
+
+    @Test
+    public void matchesScan() {
+        Random random = new Random(99);
+        KeyIndex index = new KeyIndex(Collections.<String>emptySet());
+        Map<String, Dictionary<String, Object>> configs = new HashMap<>();
+        for (int step = 0; step < 2000; step++) {
+            String pid = "pid" + random.nextInt(50);
+            if (random.nextInt(10) == 0) {
+                index.remove(pid);
+                configs.remove(pid);
+                continue;
+            }
+            Hashtable<String, Object> table = new Hashtable<>();
+            for (int k = random.nextInt(20); k > 0; k--) {
+                table.put("section" + random.nextInt(5) + ".key" + random.nextInt(10), k);
+            }
+            index.put(pid, table);
+            configs.put(pid, table);
+        }
+        SortedMap<String, Set<String>> expected = new TreeMap<>();
+        for (Map.Entry<String, Dictionary<String, Object>> config : configs.entrySet()) {
+            for (String key : Collections.list(config.getValue().keys())) {
+                Set<String> pids = expected.get(key);
+                if (pids == null) {
+                    pids = new HashSet<>();
+                    expected.put(key, pids);
+                }
+                pids.add(config.getKey());
+            }
+        }
+        assertEquals(expected, index.getKeysWithPrefix(""));
+        assertEquals(expected.subMap("section2.", "section2/"), index.getKeysWithPrefix("section2."));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Per-key ordering and backpressure.
+ */
+public class KeyedSerialExecutorTest {
+
+    @Test
+    public void keepsOrderPerKey() throws Exception {
+        KeyedSerialExecutor executor = new KeyedSerialExecutor(4, 50, "test");
+        final List<List<Integer>> seen = new ArrayList<>();
+        for (int k = 0; k < 8; k++) {
+            seen.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        for (int x = 0; x < 4000; x++) {
+            final int key = x % seen.size();
+            final int value = x;
+            executor.execute("key" + key, new Runnable() {
+                @Override
+                public void run() {
+                    seen.get(key).add(value);
+                }
+            });
+            assertTrue(executor.pending() <= 50);
+        }
+        assertTrue(executor.awaitIdle(30, TimeUnit.SECONDS));
+        for (int k = 0; k < seen.size(); k++) {
+            List<Integer> values = seen.get(k);
+            assertEquals(4000 / seen.size(), values.size());
+            for (int x = 0; x < values.size(); x++) {
+                assertEquals(Integer.valueOf(k + x * seen.size()), values.get(x));
+            }
+        }
+        assertEquals(0, executor.pending());
+        assertTrue(executor.queueDepth().max() <= 50);
+        executor.shutdown(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void failingTaskDoesNotStallKey() throws Exception {
+        KeyedSerialExecutor executor = new KeyedSerialExecutor(1, 10, "test");
+        final AtomicInteger ran = new AtomicInteger();
+        executor.execute("a", new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("boom");
+            }
+        });
+        executor.execute("a", new Runnable() {
+            @Override
+            public void run() {
+                ran.incrementAndGet();
+            }
+        });
+        assertTrue(executor.awaitIdle(10, TimeUnit.SECONDS));
+        assertEquals(1, ran.get());
+        executor.shutdown(10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.basistech.yca;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.basistech.yca.FlatteningConfigFileManagerTest.write;
+import static org.junit.Assert.assertEquals;
+
+public class PollingChangeSourceTest extends AbstractChangeSourceTest {
+    @Override
+    ChangeSource create(Path root, boolean recursive) throws Exception {
+        return new PollingChangeSource(root, recursive, TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void recentFileIsReportedOnceMore() throws Exception {
+        File dir = folder.newFolder("recent");
+        write(dir, "a.yaml", "value: 1\n");
+        final Path a = dir.toPath().resolve("a.yaml");
+        // too recent to trust now, and settled in half a second.
+        Files.setLastModifiedTime(a, FileTime.fromMillis(System.currentTimeMillis()
+                - FileFingerprint.MTIME_GRANULARITY_MILLIS + 500));
+        final AtomicInteger reports = new AtomicInteger();
+        ChangeSource.Listener listener = new ChangeSource.Listener() {
+            @Override
+            public void changed(Path file, EventCoalescer.Action action, int repeats) {
+                if (file.equals(a)) {
+                    reports.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void directoryRemoved(Path directory) {
+                //
+            }
+
+            @Override
+            public void overflowed() {
+                //
+            }
+        };
+        ChangeSource source = create(dir.toPath(), false);
+        try {
+            source.listFiles();
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1500);
+            while (System.nanoTime() - end < 0) {
+                source.await(TimeUnit.MILLISECONDS.toNanos(50), listener);
+            }
+        } finally {
+            source.close();
+        }
+        assertEquals(1, reports.get());
+    }
+}
@@ -0,0 +1,179 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class SectionedFlattenerTest {
+    private final YAMLFactory factory = new YAMLFactory();
+
+    private Dictionary<String, ?> fullFlatten(String yaml) throws IOException {
+        try (JsonParser parser = factory.createParser(yaml.getBytes(StandardCharsets.UTF_8))) {
+            return JsonNodeFlattener.flatten(parser);
+        }
+    }
+
+    private static String join(List<String> sections) {
+        StringBuilder text = new StringBuilder("# generated\n---\n");
+        for (String section : sections) {
+            text.append(section);
+        }
+        return text.toString();
+    }
+
+    /*
+     * A top-level section in block style, with nested mappings, sequences at the margin,
+     * block scalars, comments and blank lines.
+     */
+    private static String randomSection(Random random, String name) {
+        StringBuilder text = new StringBuilder(name).append(":\n");
+        int entries = 1 + random.nextInt(6);
+        for (int x = 0; x < entries; x++) {
+            switch (random.nextInt(6)) {
+            case 0:
+                text.append("  value").append(x).append(": ").append(random.nextInt(1000)).append('\n');
+                break;
+            case 1:
+                text.append("  text").append(x).append(": |\n    line one ").append(random.nextInt())
+                        .append("\n    # not a comment\n");
+                break;
+            case 2:
+                text.append("  list").append(x).append(":\n");
+                for (int y = random.nextInt(4); y >= 0; y--) {
+                    text.append("  - item").append(random.nextInt(100)).append('\n');
+                }
+                break;
+            case 3:
+                text.append("\n# comment ").append(random.nextInt()).append('\n');
+                break;
+            case 4:
+                text.append("  nested").append(x).append(":\n    deeper: {a: 1, b: [x, y]}\n    flag: ")
+                        .append(random.nextBoolean()).append('\n');
+                break;
+            default:
+                text.append("  quoted").append(x).append(": \"s").append(random.nextInt(100)).append(" # not a comment\"\n");
+                break;
+            }
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void matchesFullFlattenUnderEdits() throws Exception {
+        Random random = new Random(2468);
+        SectionedFlattener flattener = new SectionedFlattener(factory);
+        List<String> sections = new ArrayList<>();
+        int names = 0;
+        for (int x = 0; x < 30; x++) {
+            sections.add(randomSection(random, "section" + names++));
+        }
+        String text = join(sections);
+        assertEquals(fullFlatten(text), flattener.flatten("file", text.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(30, flattener.sectionsParsed());
+
+        for (int edit = 0; edit < 200; edit++) {
+            int changed;
+            switch (random.nextInt(5)) {
+            case 0:
+                sections.add(random.nextInt(sections.size() + 1), randomSection(random, "section" + names++));
+                changed = 1;
+                break;
+            case 1:
+                if (sections.size() > 1) {
+                    sections.remove(random.nextInt(sections.size()));
+                }
+                changed = 0;
+                break;
+            case 2:
+                Collections.swap(sections, random.nextInt(sections.size()), random.nextInt(sections.size()));
+                changed = 0;
+                break;
+            default:
+                int x = random.nextInt(sections.size());
+                String name = sections.get(x).substring(0, sections.get(x).indexOf(':'));
+                String replacement = randomSection(random, name);
+                changed = replacement.equals(sections.get(x)) ? 0 : 1;
+                sections.set(x, replacement);
+                break;
+            }
+            text = join(sections);
+            long parsed = flattener.sectionsParsed();
+            Dictionary<String, Object> flat = flattener.flatten("file", text.getBytes(StandardCharsets.UTF_8));
+            assertEquals(text, fullFlatten(text), flat);
+            assertEquals(changed, flattener.sectionsParsed() - parsed);
+        }
+    }
+
+    @Test
+    public void headerChangeParsesEverything() throws Exception {
+        SectionedFlattener flattener = new SectionedFlattener(factory);
+        String text = "a: 1\nb:\n  c: 2\n";
+        flattener.flatten("file", text.getBytes(StandardCharsets.UTF_8));
+        text = "# new header\n" + text;
+        assertEquals(fullFlatten(text), flattener.flatten("file", text.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(4, flattener.sectionsParsed());
+        assertEquals(0, flattener.sectionsReused());
+    }
+
+    @Test
+    public void anchorsWithinASection() throws Exception {
+        SectionedFlattener flattener = new SectionedFlattener(factory);
+        String text = "a:\n  base: &base {x: 1}\n  copy: *base\nb: 2\n";
+        assertEquals(fullFlatten(text), flattener.flatten("file", text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void leavesUnsplittableFilesToTheCaller() throws Exception {
+        SectionedFlattener flattener = new SectionedFlattener(factory);
+        String[] unsplittable = {
+            // an alias to another section's anchor.
+            "a: &shared {x: 1}\nb: *shared\n",
+            // flow style root.
+            "{a: 1,\nb: 2}\n",
+            // a root sequence.
+            "- a\n- b\n",
+            // more than one document.
+            "a: 1\n---\nb: 2\n",
+            // the same key from two sections.
+            "a.b: 1\na:\n  b: 2\n",
+            // a flow collection that carries on at the margin.
+            "a: [1,\n2]\n",
+            "",
+        };
+        for (String text : unsplittable) {
+            assertNull(text, flattener.flatten("file", text.getBytes(StandardCharsets.UTF_8)));
+        }
+        // and having failed, it starts over.
+        assertNotNull(flattener.flatten("file", "a: 1\n".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(0, flattener.sectionsReused());
+    }
+}
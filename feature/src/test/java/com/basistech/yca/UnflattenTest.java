@@ -19,6 +19,9 @@ package com.basistech.yca;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import com.google.common.io.Resources;
 import org.junit.Test;
@@ -26,6 +29,9 @@ import org.junit.Test;
 import java.net.URL;
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
 
@@ -60,4 +66,59 @@ public class UnflattenTest {
         JsonNode ref = new ObjectMapper(new YAMLFactory()).readTree("a: [ [ dog ] ]");
         assertEquals(ref, roundTrip);
     }
+
+    @Test
+    public void longArrayOfObjects() throws Exception {
+        Hashtable<String, Object> ht = new Hashtable<>();
+        for (int x = 0; x < 12; x++) {
+            ht.put("a[" + x + "].n", x);
+            ht.put("a[" + x + "].s", "v" + x);
+        }
+        JsonNode roundTrip = JsonNodeFlattener.unflatten(ht);
+        assertEquals(12, roundTrip.get("a").size());
+        for (int x = 0; x < 12; x++) {
+            assertEquals(x, roundTrip.get("a").get(x).get("n").intValue());
+            assertEquals("v" + x, roundTrip.get("a").get(x).get("s").textValue());
+        }
+    }
+
+    @Test
+    public void roundTripRandom() throws Exception {
+        Random random = new Random(4321);
+        for (int trial = 0; trial < 500; trial++) {
+            ObjectNode node = JsonNodeFactory.instance.objectNode();
+            node.set("root", FlattenerTest.randomNode(random, 0));
+            JsonNode expected = prune(node);
+            if (expected == null) {
+                continue;
+            }
+            assertEquals(expected, JsonNodeFlattener.unflatten(JsonNodeFlattener.flatten(expected)));
+        }
+    }
+
+    // Empty containers do not survive flattening, so take them out of the reference tree.
+    private static JsonNode prune(JsonNode node) {
+        if (node.isArray()) {
+            ArrayNode array = JsonNodeFactory.instance.arrayNode();
+            for (JsonNode element : node) {
+                JsonNode pruned = prune(element);
+                if (pruned != null) {
+                    array.add(pruned);
+                }
+            }
+            return array.size() == 0 ? null : array;
+        } else if (node.isObject()) {
+            ObjectNode object = JsonNodeFactory.instance.objectNode();
+            Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                JsonNode pruned = prune(field.getValue());
+                if (pruned != null) {
+                    object.set(field.getKey(), pruned);
+                }
+            }
+            return object.size() == 0 ? null : object;
+        }
+        return node;
+    }
 }
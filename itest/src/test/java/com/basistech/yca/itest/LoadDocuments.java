@@ -0,0 +1,70 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca.itest;
+
+/**
+ * The yaml files the load harness writes. Every version of a file carries its index and the
+ * {@link System#nanoTime()} at which it was written, so that whoever receives the
+ * configuration can tell how long it took to get there.
+ */
+final class LoadDocuments {
+    static final String FACTORY_PID = "load";
+    static final String INDEX_KEY = "index";
+    static final String STAMP_KEY = "stamp";
+
+    private LoadDocuments() {
+        //
+    }
+
+    static String fileName(int index) {
+        return FACTORY_PID + "-" + index + ".yaml";
+    }
+
+    /**
+     * @param keys about how many keys the flattened document has, besides the index and stamp.
+     */
+    static String document(int index, long stamp, int version, String shape, int keys) {
+        StringBuilder yaml = new StringBuilder();
+        yaml.append(INDEX_KEY).append(": ").append(index).append('\n');
+        yaml.append(STAMP_KEY).append(": ").append(stamp).append('\n');
+        switch (shape) {
+        case "flat":
+            for (int k = 0; k < keys; k++) {
+                yaml.append("key").append(k).append(": value-").append(k).append('-').append(version).append('\n');
+            }
+            break;
+        case "nested":
+            for (int k = 0; k < keys; k++) {
+                if (k % 10 == 0) {
+                    yaml.append("section").append(k / 10).append(":\n");
+                }
+                yaml.append("  key").append(k).append(": value-").append(k).append('-').append(version).append('\n');
+            }
+            break;
+        case "arrays":
+            yaml.append("rows:\n");
+            for (int k = 0; k < keys; k += 3) {
+                yaml.append("  - [ ").append(k).append(", label-").append(version).append(", ").append(k / 3.0).append(" ]\n");
+            }
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+        return yaml.toString();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca.itest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Write-to-{@code updated()} latencies and throughput for one run, and the json report
+ * that is kept for comparison between runs.
+ */
+final class LoadReport {
+    private long[] latencies = new long[1024];
+    private int count;
+
+    synchronized void record(long nanos) {
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = nanos;
+    }
+
+    synchronized int count() {
+        return count;
+    }
+
+    /**
+     * @return the latency at this percentile (0-100), in milliseconds; 0 if nothing was recorded.
+     */
+    synchronized double percentileMillis(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))] / 1e6;
+    }
+
+    /**
+     * Write the report as one json object: the settings, the manager configuration, how long
+     * it took the files to be created, and for the mutation phase the writes, updates, updates per second
+     * and latency percentiles.
+     */
+    synchronized void write(LoadSettings settings, Map<String, String> manager, long createMillis, int writes,
+                            double updatesPerSecond) throws IOException {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"files\": ").append(settings.files).append(",\n");
+        json.append("  \"keys\": ").append(settings.keys).append(",\n");
+        json.append("  \"shape\": \"").append(settings.shape).append("\",\n");
+        json.append("  \"rate\": ").append(settings.rate).append(",\n");
+        json.append("  \"seconds\": ").append(settings.seconds).append(",\n");
+        json.append("  \"manager\": {");
+        String separator = "";
+        for (Map.Entry<String, String> entry : manager.entrySet()) {
+            json.append(separator).append('"').append(entry.getKey()).append("\": \"").append(entry.getValue()).append('"');
+            separator = ", ";
+        }
+        json.append("},\n");
+        json.append("  \"createMillis\": ").append(createMillis).append(",\n");
+        json.append("  \"writes\": ").append(writes).append(",\n");
+        json.append("  \"updates\": ").append(count).append(",\n");
+        json.append("  \"updatesPerSecond\": ").append(format(updatesPerSecond)).append(",\n");
+        json.append("  \"latencyMillis\": {");
+        json.append("\"p50\": ").append(format(percentileMillis(50)));
+        json.append(", \"p90\": ").append(format(percentileMillis(90)));
+        json.append(", \"p99\": ").append(format(percentileMillis(99)));
+        json.append(", \"p999\": ").append(format(percentileMillis(99.9)));
+        json.append(", \"max\": ").append(format(percentileMillis(100)));
+        json.append("}\n}\n");
+        Files.createDirectories(settings.report.toPath().toAbsolutePath().getParent());
+        Files.write(settings.report.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca.itest;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * The knobs of the load harness, from system properties with the {@code yca.load.} prefix,
+ * for example {@code mvn -Prun-load-tests verify -Dyca.load.files=5000 -Dyca.load.rate=500}:
+ * <dl>
+ *     <dt>files</dt><dd>how many configuration files; default 200.</dd>
+ *     <dt>keys</dt><dd>flattened keys per file, roughly; default 50.</dd>
+ *     <dt>shape</dt><dd>{@code flat}, {@code nested} (the default) or {@code arrays}.</dd>
+ *     <dt>rate</dt><dd>file writes per second while mutating; default 100.</dd>
+ *     <dt>seconds</dt><dd>how long to mutate; default 20.</dd>
+ *     <dt>maxP99Millis</dt><dd>if positive, fail when the 99th percentile latency is higher.</dd>
+ *     <dt>report</dt><dd>where to write the report; default target/load-report.json.</dd>
+ *     <dt>manager.*</dt><dd>passed to the manager's configuration, for example
+ *     {@code -Dyca.load.manager.applyThreads=4}.</dd>
+ * </dl>
+ */
+final class LoadSettings {
+    static final String PREFIX = "yca.load.";
+    static final String MANAGER_PREFIX = PREFIX + "manager.";
+    static final String DIRECTORY = PREFIX + "directory";
+
+    final int files;
+    final int keys;
+    final String shape;
+    final int rate;
+    final int seconds;
+    final long maxP99Millis;
+    final File report;
+    final File directory;
+
+    private LoadSettings(Properties properties) {
+        files = intValue(properties, "files", 200);
+        keys = intValue(properties, "keys", 50);
+        shape = properties.getProperty(PREFIX + "shape", "nested");
+        rate = intValue(properties, "rate", 100);
+        seconds = intValue(properties, "seconds", 20);
+        maxP99Millis = intValue(properties, "maxP99Millis", 0);
+        report = new File(properties.getProperty(PREFIX + "report", "target/load-report.json")).getAbsoluteFile();
+        directory = new File(properties.getProperty(DIRECTORY, "target/load-configs")).getAbsoluteFile();
+    }
+
+    static LoadSettings fromSystemProperties() {
+        return new LoadSettings(System.getProperties());
+    }
+
+    /**
+     * @return the harness settings as system properties, to hand on to the container.
+     */
+    static Map<String, String> harnessProperties() {
+        Map<String, String> result = new TreeMap<>();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PREFIX) && !name.startsWith(MANAGER_PREFIX)) {
+                result.put(name, System.getProperty(name));
+            }
+        }
+        LoadSettings settings = fromSystemProperties();
+        result.put(DIRECTORY, settings.directory.getPath());
+        result.put(PREFIX + "report", settings.report.getPath());
+        return result;
+    }
+
+    /**
+     * @return the manager's configuration properties given on the command line.
+     */
+    static Map<String, String> managerProperties() {
+        Map<String, String> result = new TreeMap<>();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(MANAGER_PREFIX)) {
+                result.put(name.substring(MANAGER_PREFIX.length()), System.getProperty(name));
+            }
+        }
+        return result;
+    }
+
+    private static int intValue(Properties properties, String name, int defaultValue) {
+        String value = properties.getProperty(PREFIX + name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+}
@@ -0,0 +1,266 @@
+/*
+* Copyright 2015 Basis Technology Corp.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.basistech.yca.itest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.ops4j.pax.exam.Configuration;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.karaf.options.LogLevelOption;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerClass;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.cm.ManagedServiceFactory;
+
+import javax.inject.Inject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+import static org.ops4j.pax.exam.CoreOptions.maven;
+import static org.ops4j.pax.exam.karaf.options.KarafDistributionOption.configureConsole;
+import static org.ops4j.pax.exam.karaf.options.KarafDistributionOption.editConfigurationFilePut;
+import static org.ops4j.pax.exam.karaf.options.KarafDistributionOption.features;
+import static org.ops4j.pax.exam.karaf.options.KarafDistributionOption.karafDistributionConfiguration;
+import static org.ops4j.pax.exam.karaf.options.KarafDistributionOption.logLevel;
+
+/**
+ * Load harness: how long it takes for a file change to reach a {@link ManagedServiceFactory}
+ * through the manager and ConfigurationAdmin in a real Karaf, and how many updates per second
+ * get through. It writes {@code files} files, waits for all of them to arrive, then rewrites
+ * random files at {@code rate} per second for {@code seconds}, and waits for the last version of
+ * every file to arrive. The latency of each update is from the write of the version it carries
+ * to the call to {@code updated()}; versions that the manager coalesced away are not counted.
+ * See {@link LoadSettings} for the knobs; the results go to a json report.
+ */
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerClass.class)
+public class ManagerLoadIT {
+    private static final String MANAGER_CFG = "etc/com.basistech.yca.FlatteningConfigFileManager.cfg";
+    private static final String FEATURES_CFG = "etc/org.apache.karaf.features.cfg";
+    private static final long CONVERGE_TIMEOUT_SECONDS = 120;
+
+    @Inject
+    private BundleContext bundleContext;
+
+    @Configuration
+    public Option[] config() throws IOException {
+        LoadSettings settings = LoadSettings.fromSystemProperties();
+        // the manager must find the directory there, and empty, when it starts.
+        if (settings.directory.exists()) {
+            deleteTree(settings.directory.toPath());
+        }
+        Files.createDirectories(settings.directory.toPath());
+
+        String karafVersion = System.getProperty("karaf.version");
+        List<Option> options = new ArrayList<>();
+        options.add(karafDistributionConfiguration()
+                .frameworkUrl(maven().groupId("org.apache.karaf").artifactId("apache-karaf").type("tar.gz").version(karafVersion))
+                .unpackDirectory(new File("target/exam"))
+                .useDeployFolder(false));
+        options.add(configureConsole().ignoreLocalConsole().ignoreRemoteShell());
+        options.add(logLevel(LogLevelOption.LogLevel.WARN));
+        // the feature wraps a dependency that is not a bundle, so the wrap: handler has to be
+        // there before it is resolved; a first boot stage of its own sees to that.
+        options.add(editConfigurationFilePut(FEATURES_CFG, "featuresBoot", "(wrap)"));
+        options.add(features(maven().groupId("org.apache.karaf.features").artifactId("standard")
+                .classifier("features").type("xml").version(karafVersion), "scr"));
+        options.add(features(maven().groupId("com.basistech.ws").artifactId("yaml-configuration-admin")
+                .classifier("features").type("xml").version(System.getProperty("yca.version")), "yaml-configuration-admin"));
+        options.add(editConfigurationFilePut(MANAGER_CFG, "configurationDirectory", settings.directory.getPath()));
+        for (Map.Entry<String, String> entry : LoadSettings.managerProperties().entrySet()) {
+            options.add(editConfigurationFilePut(MANAGER_CFG, entry.getKey(), entry.getValue()));
+        }
+        for (Map.Entry<String, String> entry : LoadSettings.harnessProperties().entrySet()) {
+            options.add(editConfigurationFilePut("etc/system.properties", entry.getKey(), entry.getValue()));
+        }
+        return options.toArray(new Option[options.size()]);
+    }
+
+    @Test
+    public void fileChangesReachManagedServiceFactory() throws Exception {
+        LoadSettings settings = LoadSettings.fromSystemProperties();
+        Receiver receiver = new Receiver(settings.files);
+        Hashtable<String, Object> properties = new Hashtable<>();
+        properties.put(Constants.SERVICE_PID, LoadDocuments.FACTORY_PID);
+        ServiceRegistration<ManagedServiceFactory> registration = bundleContext.registerService(ManagedServiceFactory.class,
+                receiver, properties);
+        try {
+            long[] stamps = new long[settings.files];
+            int[] versions = new int[settings.files];
+            long start = System.nanoTime();
+            for (int x = 0; x < settings.files; x++) {
+                stamps[x] = write(settings, x, versions[x]);
+            }
+            receiver.await(stamps);
+            // the manager is already running, so these are N live creates, not an inventory.
+            long createMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            LoadReport report = new LoadReport();
+            receiver.report = report;
+            Random random = new Random(settings.files);
+            long period = TimeUnit.SECONDS.toNanos(1) / settings.rate;
+            long begin = System.nanoTime();
+            long end = begin + TimeUnit.SECONDS.toNanos(settings.seconds);
+            int writes = 0;
+            // a fixed rate: if a write runs late, the following ones catch up.
+            for (long next = begin; next - end < 0; next += period) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                int index = random.nextInt(settings.files);
+                stamps[index] = write(settings, index, ++versions[index]);
+                writes++;
+            }
+            receiver.await(stamps);
+            double elapsedSeconds = (System.nanoTime() - begin) / 1e9;
+            receiver.report = null;
+
+            double updatesPerSecond = report.count() / elapsedSeconds;
+            report.write(settings, LoadSettings.managerProperties(), createMillis, writes, updatesPerSecond);
+            if (settings.maxP99Millis > 0) {
+                assertTrue("p99 latency " + report.percentileMillis(99) + "ms is over " + settings.maxP99Millis + "ms",
+                        report.percentileMillis(99) <= settings.maxP99Millis);
+            }
+        } finally {
+            registration.unregister();
+        }
+    }
+
+    /*
+     * Write next to the directory and move into place, so that the manager never sees a
+     * half-written file.
+     * @return the stamp written into the file.
+     */
+    private static long write(LoadSettings settings, int index, int version) throws IOException {
+        Path temp = Files.createTempFile(settings.directory.toPath().getParent(), "load", ".tmp");
+        long stamp = System.nanoTime();
+        Files.write(temp, LoadDocuments.document(index, stamp, version, settings.shape, settings.keys)
+                .getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, settings.directory.toPath().resolve(LoadDocuments.fileName(index)),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return stamp;
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Receives the configurations made from the load files, and notes the newest stamp seen
+     * for each file.
+     */
+    private static final class Receiver implements ManagedServiceFactory {
+        // guarded by this; nanoTime can be anything, so there is no sentinel stamp.
+        private final long[] seen;
+        private final boolean[] arrived;
+        volatile LoadReport report;
+
+        Receiver(int files) {
+            seen = new long[files];
+            arrived = new boolean[files];
+        }
+
+        @Override
+        public String getName() {
+            return "yca load harness";
+        }
+
+        @Override
+        public void updated(String pid, Dictionary<String, ?> properties) {
+            long now = System.nanoTime();
+            Object index = properties.get(LoadDocuments.INDEX_KEY);
+            Object stamp = properties.get(LoadDocuments.STAMP_KEY);
+            if (!(index instanceof Number) || !(stamp instanceof Number)) {
+                return;
+            }
+            long written = ((Number) stamp).longValue();
+            LoadReport current = report;
+            if (current != null) {
+                current.record(now - written);
+            }
+            synchronized (this) {
+                int file = ((Number) index).intValue();
+                if (!arrived[file] || written - seen[file] > 0) {
+                    seen[file] = written;
+                    arrived[file] = true;
+                }
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void deleted(String pid) {
+            //
+        }
+
+        /**
+         * Wait until the version with each of these stamps (or a later one) has arrived.
+         */
+        synchronized void await(long[] stamps) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(CONVERGE_TIMEOUT_SECONDS);
+            for (;;) {
+                int missing = 0;
+                for (int x = 0; x < stamps.length; x++) {
+                    if (!arrived[x] || seen[x] - stamps[x] < 0) {
+                        missing++;
+                    }
+                }
+                if (missing == 0) {
+                    return;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new AssertionError(missing + " files did not arrive within " + CONVERGE_TIMEOUT_SECONDS + "s");
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+    }
+}